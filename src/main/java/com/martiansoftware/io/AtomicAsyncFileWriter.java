@@ -0,0 +1,318 @@
+package com.martiansoftware.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A non-blocking counterpart to AtomicFileOutputStream, built on
+ * AsynchronousFileChannel: all writes are directed to a temporary file, which
+ * atomically replaces the destination file when the writer is committed.
+ * write(), commit() and cancelAsync() never block on disk I/O, so they may be
+ * called from event-loop threads.  The constructor, however, creates the
+ * temporary file before returning, and cancel() deletes it before returning.
+ * 
+ * Writes are placed in the file in the order in which write() is called,
+ * even though they may complete in any order, and write() may be called
+ * from any thread.  commit() waits for all outstanding writes to complete
+ * before committing.
+ * 
+ * If anything goes wrong, the temporary file will be deleted (after a failed
+ * write, not until the writer is committed or cancelled, so that no file is
+ * deleted on an I/O completion thread).  If anything goes wrong between
+ * backing up and replacing the original, a backup file may remain on disk
+ * (and can be obtained via getBackup()).  If all goes well, no temporary or
+ * backup files will remain on disk after committing.
+ * 
+ * @author Marty Lamb
+ */
+public class AtomicAsyncFileWriter {
+    
+    private final Path _dest; // user-specified destination file
+    private final AtomicCommit _commit; // temporary and backup files, and how to commit them
+    private final AsynchronousFileChannel _tmpOut; // writes to tmp file
+    private final Executor _executor; // performs the blocking parts of commit()
+    
+    private long _position; // where the next write() goes; guarded by this
+    private int _pending;   // writes not yet completed; guarded by this
+    private Throwable _failure; // first failed write; guarded by this
+    private CompletableFuture<Void> _drained; // completed when _pending reaches 0 after commit(); guarded by this
+    private boolean _closed; // true once committed or cancelled; guarded by this
+    
+    /**
+     * Creates a new AtomicAsyncFileWriter to write to or replace the specified File,
+     * using the default thread pools for I/O and to commit
+     * @param file the File to write to or replace
+     * @throws IOException 
+     */
+    public AtomicAsyncFileWriter(File file) throws IOException {
+        this (file.toPath());
+    }
+    
+    /**
+     * Creates a new AtomicAsyncFileWriter to write to or replace the File at the specified Path,
+     * using the default thread pools for I/O and to commit
+     * @param path the path of the File to write to or replace
+     * @throws IOException 
+     */
+    public AtomicAsyncFileWriter(Path path) throws IOException {
+        this (path, null);
+    }
+    
+    /**
+     * Creates a new AtomicAsyncFileWriter to write to or replace the File at the specified Path
+     * @param path the path of the File to write to or replace
+     * @param executor the ExecutorService used for I/O and to commit, or null for
+     *        the defaults (AsynchronousFileChannel's default thread pool for I/O, and
+     *        a shared pool of daemon threads reserved for blocking file I/O to commit)
+     * @throws IOException 
+     */
+    public AtomicAsyncFileWriter(Path path, ExecutorService executor) throws IOException {
+        _dest = path;
+        _commit = new AtomicCommit(_dest);
+        _tmpOut = _commit.openAsyncTemp(executor);
+        _executor = (executor == null) ? IoExecutor.get() : executor;
+    }
+    
+    /**
+     * Returns the Path of a possibly nonexistent backup copy of the original File that is being replaced (if any)
+     * @return the Path of a possibly nonexistent backup copy of the original File that is being replaced (if any)
+     */
+    public Path getBackup() { return _commit._bak; }
+    
+    /**
+     * Sets the strategy used to back up the original File before it is replaced.
+     * The default is BackupStrategy.LINK.
+     * @param backupStrategy the strategy used to back up the original File
+     */
+    public void setBackupStrategy(BackupStrategy backupStrategy) {
+        if (backupStrategy == null) throw new NullPointerException("backupStrategy");
+        _commit._backupStrategy = backupStrategy;
+    }
+    
+    /**
+     * Returns the strategy used to back up the original File before it is replaced
+     * @return the strategy used to back up the original File before it is replaced
+     */
+    public BackupStrategy getBackupStrategy() { return _commit._backupStrategy; }
+    
+    /**
+     * Sets the Durability level applied when the writer is committed.  The default is Durability.NONE.
+     * @param durability the Durability level applied when the writer is committed
+     */
+    public void setDurability(Durability durability) {
+        if (durability == null) throw new NullPointerException("durability");
+        _commit._durability = durability;
+    }
+    
+    /**
+     * Returns the Durability level applied when the writer is committed
+     * @return the Durability level applied when the writer is committed
+     */
+    public Durability getDurability() { return _commit._durability; }
+    
+    /**
+     * Sets the GroupCommitter that will rename the temporary file into place
+     * when the writer is committed, or null (the default) to rename it directly.
+     * @param committer the GroupCommitter to commit through, or null
+     */
+    public void setGroupCommitter(GroupCommitter committer) {
+        _commit._committer = committer;
+    }
+    
+    /**
+     * Returns the GroupCommitter that will rename the temporary file into place, if any
+     * @return the GroupCommitter that will rename the temporary file into place, or null
+     */
+    public GroupCommitter getGroupCommitter() { return _commit._committer; }
+    
+    /**
+     * Returns timings of each phase of the commit, or null if the writer has
+     * not been successfully committed
+     * @return timings of each phase of the commit, or null if the writer has not been successfully committed
+     */
+    public CommitStats getCommitStats() { return _commit._committed ? _commit._stats : null; }
+    
+    /**
+     * Writes all remaining bytes of the buffer after those of every previous
+     * call to write().  The buffer must not be modified until the returned
+     * future completes.
+     * @param src the buffer from which bytes are to be transferred
+     * @return a CompletableFuture that completes with the number of bytes written
+     */
+    public CompletableFuture<Integer> write(ByteBuffer src) {
+        int length = src.remaining(); // fails on null before anything is reserved
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        long position;
+        synchronized (this) {
+            if (_closed) {
+                result.completeExceptionally(new ClosedChannelException());
+                return result;
+            }
+            ++_pending;
+            position = _position;
+            _position += length;
+        }
+        new WriteOp(src, position, result).start();
+        return result;
+    }
+    
+    /**
+     * Waits (without blocking) for all outstanding writes to complete, then
+     * commits the temporary file to the destination.  The blocking parts of the
+     * commit are performed by this writer's executor.  If any write failed,
+     * the commit fails with the same exception and the destination is untouched.
+     * @return a CompletableFuture that completes with the destination Path once it has been replaced
+     */
+    public CompletableFuture<Path> commit() {
+        CompletableFuture<Path> result = new CompletableFuture<>();
+        CompletableFuture<Void> drained = new CompletableFuture<>();
+        synchronized (this) {
+            if (_closed) {
+                result.completeExceptionally(new ClosedChannelException());
+                return result;
+            }
+            _closed = true;
+            if (_pending == 0) drained.complete(null); else _drained = drained;
+        }
+        drained.thenRunAsync(() -> {
+            try {
+                closeTemp();
+            } catch (IOException | RuntimeException e) {
+                try { _tmpOut.close(); } catch (IOException ignored) {}
+                _commit.cleanup();
+                result.completeExceptionally(e);
+                return;
+            }
+            _commit.commitAsync().whenComplete((v, e) -> {
+                if (e == null) {
+                    result.complete(_dest);
+                } else {
+                    _commit.cleanup();
+                    result.completeExceptionally(e);
+                }
+            });
+        }, _executor).exceptionally(e -> {
+            result.completeExceptionally(e); // e.g. the executor rejected the task
+            return null;
+        });
+        return result;
+    }
+    
+    /**
+     * Aborts the write process, leaving the destination file untouched.
+     * Outstanding writes will fail.  The temporary file is deleted before this
+     * method returns; see cancelAsync() for a non-blocking alternative.
+     * @throws IOException 
+     */
+    public void cancel() throws IOException {
+        synchronized (this) {
+            _closed = true;
+        }
+        try { _tmpOut.close(); } catch (IOException ignored) {}
+        try {
+            _commit.finish(false);
+        } catch (IOException e) {
+            _commit.cleanup();
+            throw e;
+        }
+    }
+    
+    /**
+     * Aborts the write process like cancel(), but deletes the temporary file
+     * using this writer's executor instead of the calling thread.  Further
+     * writes fail immediately.
+     * @return a CompletableFuture that completes once the temporary file has been deleted
+     */
+    public CompletableFuture<Void> cancelAsync() {
+        synchronized (this) {
+            _closed = true;
+        }
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        try {
+            _executor.execute(() -> {
+                try {
+                    cancel();
+                    result.complete(null);
+                } catch (IOException | RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e); // e.g. the executor rejected the task
+        }
+        return result;
+    }
+    
+    // rethrows any write failure, then syncs as required by the Durability level and closes the temporary file
+    private void closeTemp() throws IOException {
+        Throwable failure;
+        synchronized (this) { failure = _failure; }
+        if (failure instanceof IOException) throw (IOException) failure;
+        if (failure != null) throw new IOException(failure);
+        CommitStats stats = _commit._stats;
+        long t = System.nanoTime();
+        _commit._durability.syncFile(_tmpOut);
+        stats._syncNanos = System.nanoTime() - t;
+        t = System.nanoTime();
+        _tmpOut.close();
+        stats._flushNanos = System.nanoTime() - t;
+    }
+    
+    // called as each write completes
+    private void writeDone(Throwable failure) {
+        CompletableFuture<Void> drained = null;
+        synchronized (this) {
+            if (failure != null && _failure == null) _failure = failure;
+            if (--_pending == 0) drained = _drained;
+        }
+        if (drained != null) drained.complete(null);
+    }
+    
+    // writes a buffer at a fixed position, continuing after partial writes
+    private class WriteOp implements CompletionHandler<Integer, Void> {
+        private final ByteBuffer _src;
+        private final CompletableFuture<Integer> _result;
+        private long _position;
+        private int _written;
+        
+        WriteOp(ByteBuffer src, long position, CompletableFuture<Integer> result) {
+            _src = src;
+            _position = position;
+            _result = result;
+        }
+        
+        void start() {
+            try {
+                _tmpOut.write(_src, _position, null, this);
+            } catch (RuntimeException e) {
+                failed(e, null);
+            }
+        }
+
+        @Override public void completed(Integer n, Void attachment) {
+            _position += n;
+            _written += n;
+            if (_src.hasRemaining()) {
+                start();
+            } else {
+                writeDone(null);
+                _result.complete(_written);
+            }
+        }
+
+        // the temporary file is deleted later by commit() or cancel(), on the
+        // writer's executor rather than this I/O completion thread
+        @Override public void failed(Throwable t, Void attachment) {
+            writeDone(t);
+            _result.completeExceptionally(t);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.martiansoftware.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Tracks the temporary and backup files for a single atomic replacement of a
+ * destination file, and performs the final backup/rename/cleanup sequence.
+ * Shared by the public writer classes so that they all commit the same way.
+ * 
+ * @author Marty Lamb
+ */
+final class AtomicCommit {
+    
+    final Path _dest; // user-specified destination file
+    final Path _tmp;  // temporary file to which writes are redirected
+    final Path _bak;  // backup of destination file made when committing
+    BackupStrategy _backupStrategy = BackupStrategy.LINK; // how _bak is made from _dest
+    Durability _durability = Durability.NONE; // what is forced to disk on commit
+    GroupCommitter _committer; // if non-null, performs the rename on our behalf
+    final CommitStats _stats = new CommitStats(); // timings of each commit phase
+    volatile boolean _committed; // true once the destination has been replaced
+    
+    private static final FileAttribute<Set<PosixFilePermission>> OWNER_ONLY
+        = PosixFilePermissions.asFileAttribute(EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE));
+    
+    // chooses names for the temporary and backup files, but does not create
+    // either; see openTemp()
+    AtomicCommit(Path dest) {
+        _dest = dest;
+        String base = _dest.getFileName() + "." + Long.toUnsignedString(ThreadLocalRandom.current().nextLong());
+        _tmp = _dest.resolveSibling(base + ".tmp");
+        _bak = _dest.resolveSibling(base + ".bak");
+    }
+    
+    // creates the temporary file and opens it for writing, plus any additional
+    // options.  like Files.createTempFile(), the file is only accessible by its
+    // owner where the file system supports POSIX permissions.
+    FileChannel openTemp(OpenOption... extraOptions) throws IOException {
+        return FileChannel.open(_tmp, tempOptions(extraOptions), tempAttributes());
+    }
+    
+    // like openTemp(), but for asynchronous I/O using the specified executor
+    // (or the default thread pool if null)
+    AsynchronousFileChannel openAsyncTemp(ExecutorService executor) throws IOException {
+        return AsynchronousFileChannel.open(_tmp, tempOptions(), executor, tempAttributes());
+    }
+    
+    private static Set<OpenOption> tempOptions(OpenOption... extraOptions) {
+        Set<OpenOption> options = new HashSet<>();
+        Collections.addAll(options, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        Collections.addAll(options, extraOptions);
+        return options;
+    }
+    
+    private FileAttribute<?>[] tempAttributes() {
+        if (_tmp.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            return new FileAttribute<?>[] { OWNER_ONLY };
+        }
+        return new FileAttribute<?>[0];
+    }
+    
+    // fails if the destination's file store does not have room for a file of the specified size
+    void checkSpace(long bytes) throws IOException {
+        Path dir = directory();
+        long usable = Files.getFileStore(dir).getUsableSpace();
+        if (usable < bytes) {
+            throw new FileSystemException(dir.toString(), null,
+                        "not enough space for " + bytes + " bytes (" + usable + " usable)");
+        }
+    }
+    
+    // the directory containing the destination file
+    Path directory() {
+        return _dest.toAbsolutePath().getParent();
+    }
+    
+    // perform the final operations to move the temporary file to its final destination
+    void finish(boolean success) throws IOException {
+        if (success) {
+            if (_committer != null) {
+                await(_committer.submit(this));
+                return;
+            }
+            try {
+                replace();
+            } catch (IOException e) {
+                cleanup();
+                throw(e);
+            }
+            try {
+                syncDirectory();
+            } finally {
+                complete(true); // the destination is replaced even if the sync failed
+            }
+            return;
+        }
+        complete(false);
+    }
+    
+    // like finish(true), but completes the returned future instead of blocking
+    // when a GroupCommitter is in use
+    CompletableFuture<Void> commitAsync() {
+        if (_committer != null) return _committer.submit(this);
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        try {
+            finish(true);
+            result.complete(null);
+        } catch (IOException | RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+    
+    // backs up the original and atomically moves tmp over it
+    void replace() throws IOException {
+        // back up original to .bak
+        long t = System.nanoTime();
+        if (Files.exists(_dest)) _backupStrategy.backup(_dest, _bak);
+        _stats._backupNanos = System.nanoTime() - t;
+        // atomically move tmp over original
+        t = System.nanoTime();
+        Files.move(_tmp, _dest, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        _stats._renameNanos = System.nanoTime() - t;
+    }
+    
+    // makes the move itself durable
+    void syncDirectory() throws IOException {
+        long t = System.nanoTime();
+        _durability.syncDirectory(directory());
+        _stats._dirSyncNanos = System.nanoTime() - t;
+    }
+    
+    // removes whatever is left over once the destination is (or is not) replaced
+    void complete(boolean success) throws IOException {
+        cleanup();
+        Files.deleteIfExists(_bak); // only delete backup if everything works
+        _committed = success;
+    }
+    
+    // replaces the destinations of the specified commits in order, forcing
+    // each directory to disk just once for all of the Durability.FULL commits
+    // in it, and returns the failure of each commit that did not succeed.  a
+    // commit whose directory could not be forced is reported as failed even
+    // though its destination was replaced, as finish() would report it.
+    static Map<AtomicCommit, Exception> finishAll(List<AtomicCommit> commits) {
+        Map<AtomicCommit, Exception> failures = new IdentityHashMap<>();
+        List<AtomicCommit> replaced = new ArrayList<>(commits.size());
+        Map<Path, List<AtomicCommit>> toSync = new LinkedHashMap<>();
+        for (AtomicCommit c : commits) {
+            try {
+                c.replace();
+            } catch (IOException | RuntimeException e) {
+                c.cleanup();
+                failures.put(c, e);
+                continue;
+            }
+            replaced.add(c);
+            if (c._durability == Durability.FULL) {
+                toSync.computeIfAbsent(c.directory(), k -> new ArrayList<>()).add(c);
+            }
+        }
+        for (Map.Entry<Path, List<AtomicCommit>> e : toSync.entrySet()) {
+            long t = System.nanoTime();
+            try {
+                Durability.FULL.syncDirectory(e.getKey());
+            } catch (IOException | RuntimeException ex) {
+                for (AtomicCommit c : e.getValue()) failures.put(c, ex);
+                continue;
+            }
+            long elapsed = System.nanoTime() - t;
+            for (AtomicCommit c : e.getValue()) c._stats._dirSyncNanos = elapsed;
+        }
+        // backups are deleted even where the sync failed, since the destination was replaced
+        for (AtomicCommit c : replaced) {
+            try {
+                c.complete(true);
+            } catch (IOException | RuntimeException e) {
+                failures.putIfAbsent(c, e);
+            }
+        }
+        return failures;
+    }
+    
+    void cleanup() {
+        try { Files.deleteIfExists(_tmp); } catch (IOException ignored) {}
+    }
+    
+    // waits for an asynchronous commit step, rethrowing its failure as-is
+    static <T> T await(Future<T> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for commit");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.martiansoftware.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Atomically replaces many files at once, such as when regenerating a
+ * directory full of small files.
+ * 
+ * Each file added to the batch is written to its own temporary file (in
+ * parallel) when the batch is committed, exactly as an AtomicFileOutputStream
+ * would.  Once all of them have been written, they are renamed into place in
+ * the order in which they were added, and (for Durability.FULL) each affected
+ * directory is forced to disk once for the whole batch rather than once per
+ * file.  Each file succeeds or fails on its own, and the outcome for every
+ * file is reported in the returned Result.
+ * 
+ * @author Marty Lamb
+ */
+public class AtomicFileBatch {
+    
+    private final List<Entry> _entries = new ArrayList<>();
+    private BackupStrategy _backupStrategy = BackupStrategy.LINK;
+    private Durability _durability = Durability.NONE;
+    private int _bufferSize = AtomicFileOutputStream.DEFAULT_BUFFER_SIZE;
+    
+    /**
+     * Writes the contents of one file in an AtomicFileBatch
+     */
+    @FunctionalInterface public interface ContentWriter {
+        /**
+         * Writes the file's contents to the specified stream, which must not be closed
+         * @param out the stream to which the file's contents should be written
+         * @throws IOException 
+         */
+        public void write(OutputStream out) throws IOException;
+    }
+    
+    /**
+     * Adds a file to the batch.  Each destination should only be added once.
+     * @param dest the path of the File to write to or replace
+     * @param writer writes the file's contents when the batch is committed
+     */
+    public void add(Path dest, ContentWriter writer) {
+        _entries.add(new Entry(dest, writer));
+    }
+    
+    /**
+     * Adds a file with the specified contents to the batch.  Each destination
+     * should only be added once.
+     * @param dest the path of the File to write to or replace
+     * @param content the file's contents
+     */
+    public void add(Path dest, byte[] content) {
+        add(dest, out -> out.write(content));
+    }
+    
+    /**
+     * Sets the strategy used to back up each original File before it is replaced.
+     * The default is BackupStrategy.LINK.
+     * @param backupStrategy the strategy used to back up each original File
+     */
+    public void setBackupStrategy(BackupStrategy backupStrategy) {
+        if (backupStrategy == null) throw new NullPointerException("backupStrategy");
+        _backupStrategy = backupStrategy;
+    }
+    
+    /**
+     * Sets the Durability level applied to every file in the batch.  The default is Durability.NONE.
+     * @param durability the Durability level applied to every file in the batch
+     */
+    public void setDurability(Durability durability) {
+        if (durability == null) throw new NullPointerException("durability");
+        _durability = durability;
+    }
+    
+    /**
+     * Sets the size of the write buffer used for each file.  Files no larger
+     * than this are written with a single write.  The default is
+     * AtomicFileOutputStream.DEFAULT_BUFFER_SIZE.
+     * @param bufferSize the size of the write buffer used for each file
+     */
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize <= 0) throw new IllegalArgumentException("bufferSize must be positive");
+        _bufferSize = bufferSize;
+    }
+    
+    /**
+     * Writes and commits every file in the batch, writing them in parallel
+     * using a shared pool of daemon threads reserved for blocking file I/O.
+     * See commit(Executor).
+     * @return the outcome for each file
+     */
+    public Result commit() {
+        return commit(IoExecutor.get());
+    }
+    
+    /**
+     * Writes every file in the batch to a temporary file in parallel using the
+     * specified Executor, then renames each successfully written file into
+     * place.  Files that fail leave their destinations untouched and do not
+     * affect the others.  The batch is empty once this returns.
+     * @param executor the Executor used to write the files
+     * @return the outcome for each file
+     */
+    public Result commit(Executor executor) {
+        List<Entry> entries = new ArrayList<>(_entries);
+        _entries.clear();
+        
+        List<CompletableFuture<Void>> writes = new ArrayList<>(entries.size());
+        for (Entry e : entries) writes.add(CompletableFuture.runAsync(e::stage, executor));
+        CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).join();
+        
+        List<AtomicCommit> staged = new ArrayList<>(entries.size());
+        for (Entry e : entries) if (e._commit != null) staged.add(e._commit);
+        Map<AtomicCommit, Exception> failures = AtomicCommit.finishAll(staged);
+        
+        List<Path> committed = new ArrayList<>();
+        Map<Path, Exception> failed = new LinkedHashMap<>();
+        for (Entry e : entries) {
+            Exception failure = (e._commit == null) ? e._failure : failures.get(e._commit);
+            if (failure == null) committed.add(e._dest); else failed.put(e._dest, failure);
+        }
+        return new Result(committed, failed);
+    }
+    
+    private class Entry {
+        final Path _dest;
+        final ContentWriter _writer;
+        AtomicCommit _commit; // set once successfully written
+        Exception _failure;   // set if writing failed
+        
+        Entry(Path dest, ContentWriter writer) {
+            _dest = dest;
+            _writer = writer;
+        }
+        
+        // writes the temporary file, leaving it ready to be renamed
+        void stage() {
+            AtomicFileOutputStream out = null;
+            try {
+                out = new AtomicFileOutputStream(_dest, _bufferSize);
+                out.setBackupStrategy(_backupStrategy);
+                out.setDurability(_durability);
+                _writer.write(out);
+                out.closeTemp();
+                _commit = out.atomicCommit();
+            } catch (IOException | RuntimeException e) {
+                _failure = e;
+                if (out != null) try { out.cancel(); } catch (IOException ignored) {}
+            }
+        }
+    }
+    
+    /**
+     * The outcome of committing an AtomicFileBatch
+     */
+    public static final class Result {
+        private final List<Path> _committed;
+        private final Map<Path, Exception> _failures;
+        
+        Result(List<Path> committed, Map<Path, Exception> failures) {
+            _committed = Collections.unmodifiableList(committed);
+            _failures = Collections.unmodifiableMap(failures);
+        }
+        
+        /**
+         * Returns the destinations that were successfully replaced (and, for
+         * Durability.FULL, whose directories were forced to disk), in the
+         * order they were added
+         * @return the destinations that were successfully replaced
+         */
+        public List<Path> getCommitted() { return _committed; }
+        
+        /**
+         * Returns the destinations that were not successfully committed, each
+         * with the exception responsible.  Most were not replaced at all, but
+         * for Durability.FULL a destination whose directory could not be
+         * forced to disk is also reported here, even though it was replaced,
+         * because the replacement may not survive a crash.
+         * @return the destinations that were not successfully committed, each with the exception responsible
+         */
+        public Map<Path, Exception> getFailures() { return _failures; }
+        
+        /**
+         * Returns true if every file in the batch was successfully committed
+         * @return true if every file in the batch was successfully committed
+         */
+        public boolean isSuccess() { return _failures.isEmpty(); }
+    }
+}
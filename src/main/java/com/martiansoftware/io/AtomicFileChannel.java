@@ -0,0 +1,309 @@
+package com.martiansoftware.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A SeekableByteChannel with the same all-or-nothing semantics as
+ * AtomicFileOutputStream: all writes are directed to a temporary file, which
+ * atomically replaces the destination file when the channel is closed.
+ * 
+ * Unlike AtomicFileOutputStream, this supports positional writes (for example,
+ * patching a header after writing the body), reading back what has been
+ * written so far, truncation, and gathering writes.  Writes are passed
+ * directly to an underlying FileChannel without intermediate buffering, so
+ * direct ByteBuffers are written without being copied onto the heap.
+ * 
+ * Output whose size is known up front can be written without any write
+ * calls at all by filling MappedByteBuffers obtained from map(); they are
+ * forced to disk along with the rest of the file when the channel is closed.
+ * 
+ * Many threads may write records concurrently via append(), which reserves a
+ * disjoint region of the file for each record without locking.  All other
+ * methods, like those of FileChannel, should not be used concurrently with
+ * relative writes or position changes.
+ * 
+ * If anything goes wrong, the temporary file will be deleted.  If anything goes
+ * wrong between backing up and replacing the original, a backup file may
+ * remain on disk (and can be obtained via getBackup()).  If all goes well,
+ * no temporary or backup files will remain on disk after closing the channel.
+ * 
+ * @author Marty Lamb
+ */
+public class AtomicFileChannel implements SeekableByteChannel, GatheringByteChannel {
+    
+    private final AtomicCommit _commit; // temporary and backup files, and how to commit them
+    private final FileChannel _tmpOut; // reads and writes tmp file
+    private final AtomicLong _appendOffset = new AtomicLong(); // end of the last region reserved by append()
+    private final List<MappedByteBuffer> _mapped = new ArrayList<>(); // regions returned by map(); guarded by itself
+    private boolean _closed;
+    
+    /**
+     * Creates a new AtomicFileChannel to write to or replace the specified File
+     * @param file the File to write to or replace
+     * @throws IOException 
+     */
+    public AtomicFileChannel(File file) throws IOException {
+        this (file.toPath());
+    }
+    
+    /**
+     * Creates a new AtomicFileChannel to write to or replace the File at the specified Path
+     * @param path the path of the File to write to or replace
+     * @throws IOException 
+     */
+    public AtomicFileChannel(Path path) throws IOException {
+        _commit = new AtomicCommit(path);
+        _tmpOut = _commit.openTemp(StandardOpenOption.READ);
+    }
+    
+    /**
+     * Returns the Path of a possibly nonexistent backup copy of the original File that is being replaced (if any)
+     * @return the Path of a possibly nonexistent backup copy of the original File that is being replaced (if any)
+     */
+    public Path getBackup() { return _commit._bak; }
+    
+    /**
+     * Sets the strategy used to back up the original File before it is replaced.
+     * The default is BackupStrategy.LINK.
+     * @param backupStrategy the strategy used to back up the original File
+     */
+    public void setBackupStrategy(BackupStrategy backupStrategy) {
+        if (backupStrategy == null) throw new NullPointerException("backupStrategy");
+        _commit._backupStrategy = backupStrategy;
+    }
+    
+    /**
+     * Returns the strategy used to back up the original File before it is replaced
+     * @return the strategy used to back up the original File before it is replaced
+     */
+    public BackupStrategy getBackupStrategy() { return _commit._backupStrategy; }
+    
+    /**
+     * Sets the Durability level applied when the channel is closed.  The default is Durability.NONE.
+     * @param durability the Durability level applied when the channel is closed
+     */
+    public void setDurability(Durability durability) {
+        if (durability == null) throw new NullPointerException("durability");
+        _commit._durability = durability;
+    }
+    
+    /**
+     * Returns the Durability level applied when the channel is closed
+     * @return the Durability level applied when the channel is closed
+     */
+    public Durability getDurability() { return _commit._durability; }
+    
+    /**
+     * Sets the GroupCommitter that will rename the temporary file into place
+     * when the channel is closed, or null (the default) to rename it directly
+     * in close().  close() still blocks until the commit is complete.
+     * @param committer the GroupCommitter to commit through, or null
+     */
+    public void setGroupCommitter(GroupCommitter committer) {
+        _commit._committer = committer;
+    }
+    
+    /**
+     * Returns the GroupCommitter that will rename the temporary file into place, if any
+     * @return the GroupCommitter that will rename the temporary file into place, or null
+     */
+    public GroupCommitter getGroupCommitter() { return _commit._committer; }
+    
+    /**
+     * Returns timings of each phase of the commit performed by close(), or null
+     * if the channel has not been successfully closed
+     * @return timings of each phase of the commit, or null if the channel has not been successfully closed
+     */
+    public CommitStats getCommitStats() { return _commit._committed ? _commit._stats : null; }
+    
+    /**
+     * Aborts the write process, leaving the destination file untouched
+     * @throws IOException 
+     */
+    public void cancel() throws IOException {
+        if (_closed) return;
+        _closed = true;
+        synchronized (_mapped) {
+            _mapped.clear();
+        }
+        try { _tmpOut.close(); } catch (IOException ignored) {}
+        try {
+            _commit.finish(false);
+        } catch (IOException e) {
+            throw fail(e);
+        }
+    }
+    
+    // cleans up the temporary file after an exception, returning the exception for rethrowing
+    private IOException fail(IOException e) {
+        _commit.cleanup();
+        return e;
+    }
+    
+    @Override public int read(ByteBuffer dst) throws IOException {
+        try {
+            return _tmpOut.read(dst);
+        } catch (IOException e) {
+            throw fail(e);
+        }
+    }
+
+    /**
+     * Writes a sequence of bytes to the temporary file at the given position,
+     * without changing the channel's position.
+     * @param src the buffer from which bytes are to be transferred
+     * @param position the file position at which the transfer is to begin
+     * @return the number of bytes written
+     * @throws IOException 
+     * @see FileChannel#write(ByteBuffer, long)
+     */
+    public int write(ByteBuffer src, long position) throws IOException {
+        try {
+            return _tmpOut.write(src, position);
+        } catch (IOException e) {
+            throw fail(e);
+        }
+    }
+    
+    /**
+     * Writes all remaining bytes of the buffer to a region of the temporary
+     * file reserved exclusively for them, immediately after the region reserved
+     * by the previous call to append().  This method is thread-safe and
+     * lock-free: concurrent appends never interleave their bytes, and are
+     * written in parallel.  The first append starts at offset 0.
+     * 
+     * Appends are independent of the channel's position, so relative writes
+     * should not be mixed with appends.  All appends must have returned before
+     * the channel is closed.
+     * 
+     * @param src the buffer from which bytes are to be transferred
+     * @return the offset within the file at which the bytes were written
+     * @throws IOException 
+     */
+    public long append(ByteBuffer src) throws IOException {
+        int len = src.remaining();
+        long offset = _appendOffset.getAndAdd(len);
+        long position = offset;
+        try {
+            while (src.hasRemaining()) position += _tmpOut.write(src, position);
+        } catch (IOException e) {
+            throw fail(e);
+        }
+        return offset;
+    }
+    
+    @Override public int write(ByteBuffer src) throws IOException {
+        try {
+            return _tmpOut.write(src);
+        } catch (IOException e) {
+            throw fail(e);
+        }
+    }
+    
+    @Override public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        try {
+            return _tmpOut.write(srcs, offset, length);
+        } catch (IOException e) {
+            throw fail(e);
+        }
+    }
+
+    @Override public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * Maps a region of the temporary file into memory so that it can be
+     * written directly, extending the file if necessary.  Data written to the
+     * buffer becomes part of the file committed when the channel is closed, and
+     * is forced to disk first if the Durability level requires it.  The buffer
+     * must not be written after the channel is closed.
+     * 
+     * The channel stops referring to its mapped buffers when it is closed or
+     * cancelled, but a mapping is only released once its buffer is garbage
+     * collected.  On Windows, a file cannot be renamed or deleted while it is
+     * mapped, so closing or cancelling a channel that has been mapped may
+     * fail there; callers that need to support Windows should avoid map().
+     * @param position the position within the file at which the region starts
+     * @param size the size of the region, at most Integer.MAX_VALUE bytes
+     * @return a writable MappedByteBuffer for the region
+     * @throws IOException 
+     * @see FileChannel#map(FileChannel.MapMode, long, long)
+     */
+    public MappedByteBuffer map(long position, long size) throws IOException {
+        MappedByteBuffer result;
+        try {
+            result = _tmpOut.map(FileChannel.MapMode.READ_WRITE, position, size);
+        } catch (IOException e) {
+            throw fail(e);
+        }
+        synchronized (_mapped) {
+            _mapped.add(result);
+        }
+        return result;
+    }
+    
+    @Override public long position() throws IOException {
+        return _tmpOut.position();
+    }
+
+    @Override public AtomicFileChannel position(long newPosition) throws IOException {
+        _tmpOut.position(newPosition);
+        return this;
+    }
+
+    @Override public long size() throws IOException {
+        return _tmpOut.size();
+    }
+
+    @Override public AtomicFileChannel truncate(long size) throws IOException {
+        try {
+            _tmpOut.truncate(size);
+        } catch (IOException e) {
+            throw fail(e);
+        }
+        return this;
+    }
+
+    @Override public boolean isOpen() {
+        return !_closed;
+    }
+
+    @Override public void close() throws IOException {
+        if (_closed) return;
+        _closed = true;
+        CommitStats stats = _commit._stats;
+        try {
+            long t = System.nanoTime();
+            synchronized (_mapped) {
+                try {
+                    if (_commit._durability != Durability.NONE) {
+                        for (MappedByteBuffer m : _mapped) m.force();
+                    }
+                } finally {
+                    _mapped.clear();
+                }
+            }
+            _commit._durability.syncFile(_tmpOut);
+            stats._syncNanos = System.nanoTime() - t;
+            t = System.nanoTime();
+            _tmpOut.close();
+            stats._flushNanos = System.nanoTime() - t;
+            _commit.finish(true);
+        } catch (IOException e) {
+            try { _tmpOut.close(); } catch (IOException ignored) {}
+            throw fail(e);
+        }
+    }
+}
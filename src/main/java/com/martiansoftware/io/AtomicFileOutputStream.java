@@ -1,12 +1,20 @@
 package com.martiansoftware.io;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.OpenOption;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 /**
  * This class is similar to the standard java.io.FileOutputStream, except that
@@ -16,7 +24,8 @@ import java.nio.file.StandardCopyOption;
  * The strategy is to:
  * <ol>
  *   <li>write to a temporary file in the same directory as the destination file.</li>
- *   <li>create a backup of the original file (if it exists) in the same directory</li>
+ *   <li>create a backup of the original file (if it exists) in the same directory
+ *       (by default a hard link, so no data is copied)</li>
  *   <li>atomically copy the temporary file to the destination file</li>
  *   <li>delete the backup file</li>
  * </ol>
@@ -26,14 +35,38 @@ import java.nio.file.StandardCopyOption;
  * remain on disk (and can be obtained via getBackup()).  If all goes well,
  * no temporary or backup files will remain on disk after closing the stream.
  * 
+ * If the JVM or machine crashes while a stream is open, its temporary file
+ * (named after the destination, with a random number and a ".tmp" suffix) may
+ * be left behind.  Output that never exceeds the write buffer is not written
+ * to a temporary file until the stream is flushed or closed, which keeps this
+ * window short for small files that are not flushed.  (Wrappers such as
+ * BufferedOutputStream and PrintStream may flush the stream themselves.)
+ * 
  * @author Marty Lamb
  */
 public class AtomicFileOutputStream extends OutputStream {
     
     private final Path _dest; // user-specified destination file
-    private final Path _tmp;  // temporary file to which writes are redirected
-    private final Path _bak;  // backup of destination file made when stream is closed
-    private final FileOutputStream _tmpOut; // writes to tmp file
+    private final AtomicCommit _commit; // temporary and backup files, and how to commit them
+    private FileChannel _tmpOut; // writes to tmp file; null until the tmp file is needed
+    private byte[] _buf; // reusable write buffer; only flushed to _tmpOut when full or on flush/close
+    private ByteBuffer _bufWrapper; // wraps _buf for writing to _tmpOut
+    private int _count;        // number of valid bytes in _buf
+    private final WriteBehind _writeBehind; // if non-null, writes full buffers to _tmpOut in the background
+    private int _directBlockSize; // if positive, direct I/O was requested for a file system with this block size
+    private DirectIo _direct;     // writes to _tmpOut if it was successfully opened for direct I/O
+    OpenOption _directOption;     // how direct I/O is requested; set by enableDirectIo(), replaced by tests
+    private long _writebackInterval; // if positive, _tmpOut is forced to disk whenever this many bytes are written
+    private long _unforced;          // bytes written to _tmpOut since it was last forced
+    private boolean _closed; // true once close(), closeAsync() or cancel() has been called
+    
+    /**
+     * The size of the internal write buffer used by the constructors that do not specify one
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+    
+    // the most transferFrom(ReadableByteChannel) asks FileChannel to transfer at once
+    private static final long TRANSFER_CHUNK_SIZE = 1 << 20;
     
     /**
      * Creates a new AtomicFileOutputStream to write to or replace the specified File
@@ -50,32 +83,199 @@ public class AtomicFileOutputStream extends OutputStream {
      * @throws IOException 
      */
     public AtomicFileOutputStream(Path path) throws IOException {
-        _dest = path;
-        try {
-            _tmp = Files.createTempFile(_dest.getParent(), 
-                                        _dest.getFileName() + ".",
-                                        ".tmp");
-            _bak = _tmp.resolveSibling(_tmp.getFileName().toString().replaceAll("\\.tmp$", ".bak"));            
-            _tmpOut = new FileOutputStream(_tmp.toFile());
-        } catch (IOException e) {
-            cleanup();
-            throw e;
+        this (path, DEFAULT_BUFFER_SIZE);
+    }
+    
+    /**
+     * Creates a new AtomicFileOutputStream to write to or replace the File at the specified Path,
+     * buffering writes internally in a buffer of the specified size.
+     * 
+     * The temporary file is not created until the buffer first overflows or
+     * the stream is flushed, so any output that fits in the buffer and is not
+     * flushed is committed on close() with a single create, write and rename.
+     * 
+     * @param path the path of the File to write to or replace
+     * @param bufferSize the size of the internal write buffer, in bytes
+     * @throws IOException 
+     */
+    public AtomicFileOutputStream(Path path, int bufferSize) throws IOException {
+        this (path, bufferSize, 0);
+    }
+    
+    /**
+     * Creates a new AtomicFileOutputStream to write to or replace the File at the specified Path,
+     * optionally writing to the temporary file in the background.
+     * 
+     * If writeBehindBuffers is greater than one, that many buffers of the
+     * specified size are allocated up front, and a dedicated thread writes each
+     * buffer to the temporary file as it fills, while writes continue into the
+     * next.  Writes then only copy data into memory, and block only if every
+     * buffer is waiting to be written.  flush() and close() wait for all
+     * buffered data to be written.  Any failure in the background is reported
+     * by the next write, flush or close.
+     * 
+     * @param path the path of the File to write to or replace
+     * @param bufferSize the size of each internal write buffer, in bytes
+     * @param writeBehindBuffers the number of buffers to write in the background,
+     *        or 0 to write in the calling thread
+     * @throws IOException 
+     */
+    public AtomicFileOutputStream(Path path, int bufferSize, int writeBehindBuffers) throws IOException {
+        if (bufferSize <= 0) throw new IllegalArgumentException("bufferSize must be positive");
+        if (writeBehindBuffers < 0 || writeBehindBuffers == 1) {
+            throw new IllegalArgumentException("writeBehindBuffers must be 0 or at least 2");
         }
+        _dest = path;
+        _buf = new byte[bufferSize];
+        _bufWrapper = ByteBuffer.wrap(_buf);
+        _writeBehind = (writeBehindBuffers == 0) ? null : new WriteBehind(writeBehindBuffers, bufferSize);
+        _commit = new AtomicCommit(_dest);
     }
 
     /**
      * Returns the Path of a possibly nonexistent backup copy of the original File that is being replaced (if any)
      * @return the Path of a possibly nonexistent backup copy of the original File that is being replaced (if any)
      */
-    public Path getBackup() { return _bak; }
+    public Path getBackup() { return _commit._bak; }
+    
+    /**
+     * Sets the strategy used to back up the original File before it is replaced.
+     * The default is BackupStrategy.LINK.
+     * @param backupStrategy the strategy used to back up the original File
+     */
+    public void setBackupStrategy(BackupStrategy backupStrategy) {
+        if (backupStrategy == null) throw new NullPointerException("backupStrategy");
+        _commit._backupStrategy = backupStrategy;
+    }
+    
+    /**
+     * Returns the strategy used to back up the original File before it is replaced
+     * @return the strategy used to back up the original File before it is replaced
+     */
+    public BackupStrategy getBackupStrategy() { return _commit._backupStrategy; }
+    
+    /**
+     * Sets the Durability level applied when the stream is closed.  The default is Durability.NONE.
+     * @param durability the Durability level applied when the stream is closed
+     */
+    public void setDurability(Durability durability) {
+        if (durability == null) throw new NullPointerException("durability");
+        _commit._durability = durability;
+    }
+    
+    /**
+     * Returns the Durability level applied when the stream is closed
+     * @return the Durability level applied when the stream is closed
+     */
+    public Durability getDurability() { return _commit._durability; }
+    
+    /**
+     * Sets the GroupCommitter that will rename the temporary file into place
+     * when the stream is closed, or null (the default) to rename it directly
+     * in close().  close() still blocks until the commit is complete.
+     * @param committer the GroupCommitter to commit through, or null
+     */
+    public void setGroupCommitter(GroupCommitter committer) {
+        _commit._committer = committer;
+    }
+    
+    /**
+     * Returns the GroupCommitter that will rename the temporary file into place, if any
+     * @return the GroupCommitter that will rename the temporary file into place, or null
+     */
+    public GroupCommitter getGroupCommitter() { return _commit._committer; }
+    
+    /**
+     * Tells the stream roughly how many bytes will be written to it, so that
+     * it can fail immediately, rather than after writing most of the data, if
+     * the destination's file system does not have room for them.  A failed
+     * check leaves the stream as it was, so it can still be written to,
+     * closed or cancelled.
+     * @param bytes the expected size of the output
+     * @throws IOException if there is not enough usable space for the output
+     */
+    public void setExpectedSize(long bytes) throws IOException {
+        if (bytes < 0) throw new IllegalArgumentException("bytes must not be negative");
+        _commit.checkSpace(bytes);
+    }
+    
+    /**
+     * Requests that the temporary file be written with direct I/O, bypassing
+     * the operating system's page cache, so that writing a large file does not
+     * evict other data from it (Java offers no way to drop a file's pages
+     * from the cache after writing it).  This requires JDK 10 or later, and a file
+     * system that supports direct I/O; if the file system does not, the file is
+     * written normally.  It cannot be combined with write-behind.
+     * 
+     * In this mode all data passes through the stream's internal buffer (whose
+     * size is rounded up to a whole number of file system blocks), and flush()
+     * only writes whole blocks; any remaining partial block is written when the
+     * stream is closed.
+     * 
+     * This must be called before anything is written to the stream.
+     * @throws IOException if the file system's block size cannot be determined
+     * @throws UnsupportedOperationException if this JDK does not support direct I/O
+     * @throws IllegalStateException if the stream uses write-behind, or has already been written to
+     */
+    public void enableDirectIo() throws IOException {
+        if (!DirectIo.isSupported()) throw new UnsupportedOperationException("direct I/O requires JDK 10 or later");
+        if (_writeBehind != null) throw new IllegalStateException("direct I/O cannot be combined with write-behind");
+        if (_count > 0 || _tmpOut != null) throw new IllegalStateException("stream has already been written to");
+        int blockSize = DirectIo.blockSize(_commit.directory());
+        int size = (_buf.length + blockSize - 1) / blockSize * blockSize;
+        if (size != _buf.length) {
+            _buf = new byte[size];
+            _bufWrapper = ByteBuffer.wrap(_buf);
+        }
+        _directBlockSize = blockSize;
+        _directOption = DirectIo.DIRECT;
+    }
     
     /**
-     * Aborts the write process, leaving the destination file untouched
+     * Starts writing the temporary file to disk as it is written, rather than
+     * all at once when it is closed, so that syncing a large file at close()
+     * does not cause a sudden burst of disk activity and a long pause.  Every
+     * time the specified number of bytes has been written to the temporary
+     * file, it is forced to disk (by the write-behind thread, if the stream
+     * uses write-behind, or otherwise by the thread that is writing).  When
+     * the stream is closed, only the data written since then remains to be
+     * synced.
+     * @param bytes how many bytes to write between each sync, or 0 (the default) to sync only on close
+     */
+    public void setWritebackInterval(long bytes) {
+        if (bytes < 0) throw new IllegalArgumentException("bytes must not be negative");
+        _writebackInterval = bytes;
+        if (_writeBehind != null) _writeBehind.setWritebackInterval(bytes);
+    }
+    
+    /**
+     * Returns timings of each phase of the commit performed by close(), or null
+     * if the stream has not been successfully closed
+     * @return timings of each phase of the commit, or null if the stream has not been successfully closed
+     */
+    public CommitStats getCommitStats() { return _commit._committed ? _commit._stats : null; }
+    
+    /**
+     * Aborts the write process, leaving the destination file untouched.
+     * Anything still buffered is discarded.  Has no effect once the stream
+     * has been closed or cancelled, so a cancelled stream may still be closed
+     * (e.g. by try-with-resources) without replacing the destination.
      * @throws IOException 
      */
     public void cancel() throws IOException {
-        try { _tmpOut.close(); } catch (IOException ignored) {}
-        io(() -> finish(false));
+        if (_closed) return;
+        _closed = true;
+        _count = 0;
+        release();
+        io(() -> _commit.finish(false));
+    }
+    
+    // stops any write-behind thread, returns any direct I/O buffer to its
+    // pool, and closes the temporary file without removing it
+    private void release() {
+        if (_writeBehind != null) _writeBehind.stop();
+        if (_direct != null) _direct.close();
+        if (_tmpOut != null) try { _tmpOut.close(); } catch (IOException ignored) {}
     }
     
     // wraps around an IO operation to clean up any temporary files if an exception occurs
@@ -86,26 +286,19 @@ public class AtomicFileOutputStream extends OutputStream {
             throw e;            
         }        
     }
-
-    // perform the final operations to move the temporary file to its final destination
-    private void finish(boolean success) throws IOException {
-        if (success) {
-            try {
-                // copy original to .bak
-                if (Files.exists(_dest)) Files.copy(_dest, _bak, StandardCopyOption.REPLACE_EXISTING);
-                // atomically move tmp over original
-                Files.move(_tmp, _dest, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
-            } catch (IOException e) {
-                cleanup();
-                throw(e);
-            }
-        }
-        cleanup();
-        Files.deleteIfExists(_bak); // only delete backup if everything works
-    }
     
     private void cleanup() {
-        try { Files.deleteIfExists(_tmp); } catch (IOException ignored) {}
+        _commit.cleanup();
+    }
+    
+    // fails like FileOutputStream if the stream has been closed or cancelled
+    private void ensureOpen() throws IOException {
+        if (_closed) throw new IOException("Stream Closed");
+    }
+    
+    // the temporary and backup files, for committing this stream as part of a batch
+    AtomicCommit atomicCommit() {
+        return _commit;
     }
 
     
@@ -115,25 +308,475 @@ public class AtomicFileOutputStream extends OutputStream {
 
 
     
+    // returns the channel to the temporary file, creating the file if this is
+    // the first time it is needed
+    private FileChannel tmpOut() throws IOException {
+        if (_tmpOut == null) {
+            if (_directBlockSize > 0) {
+                try {
+                    _tmpOut = _commit.openTemp(_directOption);
+                    _direct = new DirectIo(_tmpOut, _directBlockSize);
+                    return _tmpOut;
+                } catch (IOException | UnsupportedOperationException e) {
+                    // file system does not support direct I/O (some providers reject
+                    // the option outright); write normally instead
+                    Files.deleteIfExists(_commit._tmp);
+                }
+            }
+            _tmpOut = _commit.openTemp();
+        }
+        return _tmpOut;
+    }
+    
+    // true if all data must pass through _buf, rather than large writes
+    // going straight to the temporary file
+    private boolean bufferAll() {
+        return _writeBehind != null || _directBlockSize > 0;
+    }
+    
+    // called after n bytes have been written to the temporary file, to force
+    // it to disk if the writeback interval has been reached
+    private void wrote(long n) throws IOException {
+        if (_writebackInterval > 0 && (_unforced += n) >= _writebackInterval) {
+            _tmpOut.force(false);
+            _unforced = 0;
+        }
+    }
+    
+    // writes all of b to the temporary file
+    private void writeFully(ByteBuffer b) throws IOException {
+        try {
+            FileChannel out = tmpOut();
+            int n = b.remaining();
+            while (b.hasRemaining()) out.write(b);
+            wrote(n);
+        } catch (IOException e) {
+            cleanup();
+            throw e;
+        }
+    }
+    
+    // writes any buffered bytes to the temporary file (or hands them to the
+    // write-behind thread).  called only when the buffer is full or on
+    // flush/close, so this is the only place the write path makes a syscall.
+    private void flushBuffer() throws IOException {
+        if (_count > 0) {
+            _bufWrapper.clear();
+            _bufWrapper.limit(_count);
+            if (_directBlockSize > 0) {
+                flushDirect();
+                return;
+            }
+            if (_writeBehind == null) {
+                writeFully(_bufWrapper);
+            } else {
+                handOff();
+            }
+            _count = 0;
+        }
+    }
+    
+    // writes as many whole blocks as are buffered with direct I/O, leaving any
+    // partial block in the buffer
+    private void flushDirect() throws IOException {
+        try {
+            tmpOut();
+            if (_direct == null) {
+                writeFully(_bufWrapper);
+                _count = 0;
+                return;
+            }
+            int n = _count - _count % _direct.blockSize();
+            _direct.write(_buf, 0, n);
+            wrote(n);
+            System.arraycopy(_buf, n, _buf, 0, _count - n);
+            _count -= n;
+        } catch (IOException e) {
+            cleanup();
+            throw e;
+        }
+    }
+    
+    // swaps the current buffer for an empty one from the write-behind ring
+    private void handOff() throws IOException {
+        try {
+            if (!_writeBehind.isStarted()) _writeBehind.start(tmpOut());
+            _bufWrapper = _writeBehind.handOff(_bufWrapper);
+            _buf = _bufWrapper.array();
+        } catch (IOException e) {
+            // the writer thread may now own the current buffer, so stop using
+            // it; the ring has failed, so nothing more can be committed anyway
+            _bufWrapper = ByteBuffer.allocate(_buf.length);
+            _buf = _bufWrapper.array();
+            _count = 0;
+            cleanup();
+            throw e;
+        }
+    }
+    
+    // waits for the write-behind thread (if any) to write everything handed to it
+    private void drain() throws IOException {
+        if (_writeBehind == null) return;
+        try {
+            _writeBehind.drain();
+        } catch (IOException e) {
+            cleanup();
+            throw e;
+        }
+    }
+    
+    // writes any remaining data to the temporary file, syncs it as required by
+    // the Durability level, and closes it
+    void closeTemp() throws IOException {
+        CommitStats stats = _commit._stats;
+        io(() -> {
+            long t = System.nanoTime();
+            try {
+                flushBuffer();
+                drain();
+                if (_direct != null) {
+                    _direct.writeTail(_buf, 0, _count);
+                    _count = 0;
+                }
+            } finally {
+                if (_writeBehind != null) _writeBehind.stop();
+                if (_direct != null) _direct.close();
+            }
+            stats._flushNanos = System.nanoTime() - t;
+            t = System.nanoTime();
+            _commit._durability.syncFile(tmpOut());
+            stats._syncNanos = System.nanoTime() - t;
+            t = System.nanoTime();
+            _tmpOut.close();
+            stats._flushNanos += System.nanoTime() - t;
+        });
+    }
+    
+    /**
+     * Closes the stream and commits it in the background using a shared pool
+     * of daemon threads reserved for blocking file I/O.  See closeAsync(Executor).
+     * @return a CompletableFuture that completes with the destination Path once it has been replaced
+     */
+    public CompletableFuture<Path> closeAsync() {
+        return closeAsync(IoExecutor.get());
+    }
+    
+    /**
+     * Closes the stream and commits it in the background, returning
+     * immediately.  Everything close() would do, including flushing, syncing,
+     * backing up and renaming, is performed by the specified Executor (which may,
+     * for example, run each task on a virtual thread on JDKs that support them).
+     * If a GroupCommitter is in use, no Executor thread waits for it.
+     * 
+     * Writing to the stream after this method is called fails, and closing it
+     * has no effect.  If the commit fails, the returned future completes
+     * exceptionally with the same exception close() would have thrown, and the
+     * temporary file is deleted.  If the stream has already been closed or
+     * cancelled, the returned future fails immediately and nothing is done.
+     * 
+     * @param executor the Executor used to perform the commit
+     * @return a CompletableFuture that completes with the destination Path once it has been replaced
+     */
+    public CompletableFuture<Path> closeAsync(Executor executor) {
+        CompletableFuture<Path> result = new CompletableFuture<>();
+        if (_closed) {
+            result.completeExceptionally(new IOException("Stream Closed"));
+            return result;
+        }
+        _closed = true;
+        try {
+            executor.execute(() -> {
+                try {
+                    closeTemp();
+                } catch (IOException | RuntimeException e) {
+                    result.completeExceptionally(e);
+                    return;
+                }
+                _commit.commitAsync().whenComplete((v, e) -> {
+                    if (e == null) {
+                        result.complete(_dest);
+                    } else {
+                        cleanup();
+                        result.completeExceptionally(e);
+                    }
+                });
+            });
+        } catch (RuntimeException e) {
+            // e.g. the executor rejected the task, so nothing else will clean up
+            release();
+            cleanup();
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+    
+    /**
+     * Closes the stream and atomically replaces the destination file with
+     * everything written to it.  Closing a stream that has already been
+     * closed or cancelled has no effect.
+     * @throws IOException 
+     */
     @Override public void close() throws IOException {
-        io(() -> _tmpOut.close());
-        io(() -> finish(true));
+        if (_closed) return;
+        _closed = true;
+        closeTemp();
+        io(() -> _commit.finish(true));
     }    
 
+    /**
+     * Writes everything remaining in the specified channel to the stream.
+     * Any buffered data is written first, then the bytes are transferred
+     * directly to the temporary file with FileChannel.transferFrom(), which
+     * avoids copying them through the Java heap where the source and platform
+     * allow.  The source must be a blocking channel.
+     * @param src the channel to read from until end-of-stream
+     * @return the number of bytes transferred
+     * @throws IOException 
+     */
+    public long transferFrom(ReadableByteChannel src) throws IOException {
+        ensureOpen();
+        if (_directBlockSize > 0) return copyThroughBuffer(src);
+        flush();
+        try {
+            FileChannel out = tmpOut();
+            long start = out.position(), position = start, n;
+            while ((n = out.transferFrom(src, position, TRANSFER_CHUNK_SIZE)) > 0) position += n;
+            out.position(position);
+            wrote(position - start);
+            return position - start;
+        } catch (IOException e) {
+            cleanup();
+            throw e;
+        }
+    }
+    
+    /**
+     * Writes everything remaining in the specified InputStream to the stream.
+     * If it is a FileInputStream, its bytes are transferred directly between
+     * the files; otherwise they are read into a buffer.
+     * @param in the InputStream to read from until end-of-stream
+     * @return the number of bytes transferred
+     * @throws IOException 
+     */
+    public long transferFrom(InputStream in) throws IOException {
+        if (in instanceof FileInputStream) return transferFrom(((FileInputStream) in).getChannel());
+        return transferFrom(Channels.newChannel(in));
+    }
+    
+    /**
+     * Writes the entire contents of the specified file to the stream.  Any
+     * buffered data is written first, then the file is copied directly to the
+     * temporary file with FileChannel.transferTo(), which lets the operating
+     * system copy it without passing it through user space where supported
+     * (e.g. via sendfile or copy_file_range on Linux).
+     * @param source the file to copy
+     * @return the number of bytes transferred
+     * @throws IOException 
+     */
+    public long transferFrom(Path source) throws IOException {
+        ensureOpen();
+        if (_directBlockSize > 0) {
+            try (FileChannel src = FileChannel.open(source, StandardOpenOption.READ)) {
+                return copyThroughBuffer(src);
+            }
+        }
+        flush();
+        try (FileChannel src = FileChannel.open(source, StandardOpenOption.READ)) {
+            FileChannel out = tmpOut();
+            long size = src.size(), position = 0;
+            while (position < size) {
+                long n = src.transferTo(position, size - position, out);
+                if (n <= 0) break; // source was truncated while we were copying
+                position += n;
+            }
+            wrote(position);
+            return position;
+        } catch (IOException e) {
+            cleanup();
+            throw e;
+        }
+    }
+    
+    // reads src until end-of-stream and writes it normally, for when it cannot
+    // be transferred directly to the temporary file
+    private long copyThroughBuffer(ReadableByteChannel src) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(_buf.length);
+        long total = 0;
+        int n;
+        while ((n = src.read(b)) >= 0) {
+            b.flip();
+            write(b);
+            b.clear();
+            total += n;
+        }
+        return total;
+    }
+    
+    /**
+     * Atomically replaces the destination file with a copy of the source file,
+     * copying it with transferFrom(Path)
+     * @param source the file to copy
+     * @param dest the path of the File to write to or replace
+     * @return the number of bytes copied
+     * @throws IOException 
+     */
+    public static long copy(Path source, Path dest) throws IOException {
+        return copy(dest, out -> out.transferFrom(source));
+    }
+    
+    /**
+     * Atomically replaces the destination file with everything remaining in
+     * the specified channel, copying it with transferFrom(ReadableByteChannel)
+     * @param src the channel to read from until end-of-stream
+     * @param dest the path of the File to write to or replace
+     * @return the number of bytes copied
+     * @throws IOException 
+     */
+    public static long copy(ReadableByteChannel src, Path dest) throws IOException {
+        return copy(dest, out -> out.transferFrom(src));
+    }
+    
+    /**
+     * Atomically replaces the destination file with everything remaining in
+     * the specified InputStream, copying it with transferFrom(InputStream)
+     * @param in the InputStream to read from until end-of-stream
+     * @param dest the path of the File to write to or replace
+     * @return the number of bytes copied
+     * @throws IOException 
+     */
+    public static long copy(InputStream in, Path dest) throws IOException {
+        return copy(dest, out -> out.transferFrom(in));
+    }
+    
+    // atomically replaces dest with whatever the transfer writes to it
+    private static long copy(Path dest, Transfer transfer) throws IOException {
+        AtomicFileOutputStream out = new AtomicFileOutputStream(dest);
+        long n;
+        try {
+            n = transfer.to(out);
+        } catch (IOException | RuntimeException e) {
+            out.cancel();
+            throw e;
+        }
+        out.close();
+        return n;
+    }
+    
+    @FunctionalInterface private interface Transfer {
+        public long to(AtomicFileOutputStream out) throws IOException;
+    }
+    
     @Override public void flush() throws IOException {
-        io(() -> _tmpOut.flush());
+        ensureOpen();
+        flushBuffer();
+        drain();
     }
     
     @Override public void write(byte[] b) throws IOException {
-        io(() -> _tmpOut.write(b));
+        write(b, 0, b.length);
     }
     
+    // the write methods below are the hot path: they allocate nothing and
+    // handle errors directly rather than via io()
     @Override public void write(byte[] b, int off, int len) throws IOException {
-        io(() -> _tmpOut.write(b, off, len));
+        ensureOpen();
+        if ((off | len | (off + len) | (b.length - (off + len))) < 0) throw new IndexOutOfBoundsException();
+        if (bufferAll()) {
+            // copy everything, so that it is written in order by the write-behind thread
+            // or in whole blocks for direct I/O
+            while (len > _buf.length - _count) {
+                int n = _buf.length - _count;
+                System.arraycopy(b, off, _buf, _count, n);
+                _count += n;
+                off += n;
+                len -= n;
+                flushBuffer();
+            }
+        } else if (len > _buf.length) {
+            // larger than the buffer; no point copying, so write it straight through
+            flushBuffer();
+            writeFully(ByteBuffer.wrap(b, off, len));
+            return;
+        }
+        if (len > _buf.length - _count) flushBuffer();
+        System.arraycopy(b, off, _buf, _count, len);
+        _count += len;
+    }
+    
+    /**
+     * Writes all remaining bytes of the specified buffer to the stream.
+     * Buffers too large for the stream's internal buffer are written directly
+     * to the temporary file (together with any data already buffered), so
+     * direct buffers are not copied onto the heap.
+     * @param src the buffer from which bytes are to be written
+     * @throws IOException 
+     */
+    public void write(ByteBuffer src) throws IOException {
+        ensureOpen();
+        if (!bufferAll() && src.remaining() > _buf.length) {
+            if (_count == 0) writeFully(src); else writeGathering(new ByteBuffer[] { src });
+            return;
+        }
+        copyToBuffer(src);
+    }
+    
+    /**
+     * Writes all remaining bytes of the specified buffers to the stream, in
+     * order.  If they do not fit in the stream's internal buffer, they are
+     * written directly to the temporary file (together with any data already
+     * buffered) with a single gathering write where possible.
+     * @param srcs the buffers from which bytes are to be written
+     * @throws IOException 
+     */
+    public void write(ByteBuffer[] srcs) throws IOException {
+        ensureOpen();
+        long total = 0;
+        for (ByteBuffer src : srcs) total += src.remaining();
+        if (!bufferAll() && total > _buf.length - _count) {
+            writeGathering(srcs);
+            return;
+        }
+        for (ByteBuffer src : srcs) copyToBuffer(src);
+    }
+    
+    // copies src into the internal buffer, flushing it as it fills
+    private void copyToBuffer(ByteBuffer src) throws IOException {
+        while (src.remaining() > _buf.length - _count) {
+            int n = _buf.length - _count;
+            src.get(_buf, _count, n);
+            _count += n;
+            flushBuffer();
+        }
+        int n = src.remaining();
+        src.get(_buf, _count, n);
+        _count += n;
+    }
+    
+    // writes any buffered bytes followed by srcs to the temporary file, in as
+    // few gathering writes as possible
+    private void writeGathering(ByteBuffer[] srcs) throws IOException {
+        ByteBuffer[] all = new ByteBuffer[srcs.length + 1];
+        _bufWrapper.clear();
+        _bufWrapper.limit(_count);
+        all[0] = _bufWrapper;
+        System.arraycopy(srcs, 0, all, 1, srcs.length);
+        long total = 0;
+        for (ByteBuffer b : all) total += b.remaining();
+        try {
+            FileChannel out = tmpOut();
+            for (long remaining = total; remaining > 0; ) remaining -= out.write(all);
+            wrote(total);
+        } catch (IOException e) {
+            cleanup();
+            throw e;
+        }
+        _count = 0;
     }
     
     @Override public void write(int b) throws IOException {
-        io(() -> _tmpOut.write(b));
+        ensureOpen();
+        if (_count == _buf.length) flushBuffer();
+        _buf[_count++] = (byte) b;
     }    
     
 }
@@ -0,0 +1,298 @@
+package com.martiansoftware.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Atomically replaces several files together, so that after a crash either
+ * all of them or none of them have been replaced (once recover() has run).
+ * 
+ * Each file is written via a stream from newOutputStream(), which directs its
+ * writes to a temporary file just as an AtomicFileOutputStream does.  As each
+ * stream is created, the names of its temporary file and destination are
+ * appended to a journal file.  commit() then forces the temporary files and
+ * their directories to disk, forces the journal to disk, appends a commit
+ * marker, forces it again, and only then renames the temporary files into
+ * place in the order in which their streams were created.  Once every
+ * rename is done (and, for Durability.FULL, each affected directory has
+ * been forced to disk), the journal is deleted.
+ * 
+ * If the process dies at any point, recover() should be called with the same
+ * journal before the files are used again.  If the journal contains the
+ * commit marker, recovery rolls forward by renaming every temporary file that
+ * is still present; otherwise it rolls back by deleting them.  Because renames
+ * are performed in journal order and a temporary file disappears as it is
+ * renamed, recovery never repeats work and the journal only ever holds one
+ * short record per file.  Where readers rely on one file (such as a manifest)
+ * to find the others, it should be written last.
+ * 
+ * Surviving power loss as well as process failure requires Durability.FULL.
+ * 
+ * @author Marty Lamb
+ */
+public class AtomicFileTransaction {
+    
+    private static final byte ENTRY = 'E';  // journal record: temp file name and destination
+    private static final byte COMMIT = 'C'; // journal record: all entries are complete and must be rolled forward
+    
+    private final Path _journal;
+    private FileChannel _journalOut; // opened when the first stream is created
+    private final List<TransactionOutputStream> _streams = new ArrayList<>();
+    private Durability _durability = Durability.NONE;
+    private boolean _done; // true once committed or cancelled
+    
+    /**
+     * Creates a new AtomicFileTransaction that records its progress in the
+     * specified journal file.  The journal must not exist when the first
+     * stream is created; call recover() first to deal with any journal left by
+     * a previous run.
+     * @param journal the journal file
+     */
+    public AtomicFileTransaction(Path journal) {
+        _journal = journal;
+    }
+    
+    /**
+     * Sets the Durability level applied to every file and to the journal.
+     * The default is Durability.NONE.
+     * @param durability the Durability level applied to every file and to the journal
+     */
+    public synchronized void setDurability(Durability durability) {
+        if (durability == null) throw new NullPointerException("durability");
+        _durability = durability;
+    }
+    
+    /**
+     * Returns the Durability level applied to every file and to the journal
+     * @return the Durability level applied to every file and to the journal
+     */
+    public synchronized Durability getDurability() {
+        return _durability;
+    }
+    
+    /**
+     * Creates a stream that writes to a temporary file, which replaces the
+     * specified destination when the transaction is committed.  Closing the
+     * stream finishes the temporary file but does not replace the destination.
+     * Each destination should only be written once per transaction.
+     * @param dest the path of the File to write to or replace
+     * @return a stream that writes to the destination's temporary file
+     * @throws IOException
+     */
+    public synchronized OutputStream newOutputStream(Path dest) throws IOException {
+        if (_done) throw new IllegalStateException("transaction is already complete");
+        AtomicFileOutputStream out = new AtomicFileOutputStream(dest);
+        out.setDurability(_durability);
+        AtomicCommit commit = out.atomicCommit();
+        try {
+            if (_journalOut == null) {
+                _journalOut = FileChannel.open(_journal, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            }
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream dout = new DataOutputStream(record);
+            dout.writeByte(ENTRY);
+            dout.writeUTF(commit._tmp.getFileName().toString());
+            dout.writeUTF(commit._dest.toAbsolutePath().toString());
+            appendJournal(record.toByteArray());
+        } catch (IOException e) {
+            out.cancel();
+            throw(e);
+        }
+        TransactionOutputStream result = new TransactionOutputStream(out);
+        _streams.add(result);
+        return result;
+    }
+    
+    /**
+     * Closes any streams that are still open and replaces all of their
+     * destinations.  If anything fails before the commit marker is written,
+     * the transaction is cancelled and none of the destinations are replaced.
+     * If a rename fails after that, the transaction is left for recover() to
+     * complete and the failure is thrown.
+     * @throws IOException
+     */
+    public synchronized void commit() throws IOException {
+        prepare();
+        Set<Path> dirs = new LinkedHashSet<>();
+        for (TransactionOutputStream s : _streams) {
+            AtomicCommit c = s._out.atomicCommit();
+            Files.move(c._tmp, c._dest, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            c._committed = true;
+            dirs.add(c.directory());
+        }
+        for (Path dir : dirs) _durability.syncDirectory(dir);
+        Files.deleteIfExists(_journal);
+    }
+    
+    // closes every stream and durably records the decision to commit, after
+    // which recover() rolls the transaction forward; cancels the transaction
+    // if anything fails before then.  tests also call this on its own to
+    // simulate a crash just before the renames.
+    synchronized void prepare() throws IOException {
+        if (_done) throw new IllegalStateException("transaction is already complete");
+        _done = true;
+        try {
+            Set<Path> dirs = new LinkedHashSet<>();
+            for (TransactionOutputStream s : _streams) {
+                s.close();
+                dirs.add(s._out.atomicCommit().directory());
+            }
+            // the temporary files must not be lost once the commit marker is
+            // on disk, or recover() would take them for files already renamed
+            for (Path dir : dirs) _durability.syncDirectory(dir);
+            if (_journalOut != null) {
+                _durability.syncFile(_journalOut);
+                appendJournal(new byte[] { COMMIT });
+                _durability.syncFile(_journalOut);
+                _journalOut.close();
+                _durability.syncDirectory(_journal.toAbsolutePath().getParent());
+            }
+        } catch (IOException | RuntimeException e) {
+            abort();
+            throw(e);
+        }
+    }
+    
+    /**
+     * Abandons the transaction, deleting its temporary files and journal
+     * without replacing any destination.  Has no effect once the transaction
+     * has been committed.
+     * @throws IOException
+     */
+    public synchronized void cancel() throws IOException {
+        if (_done) return;
+        _done = true;
+        abort();
+    }
+    
+    // deletes the temporary files and then the journal, in that order so that
+    // any temporary file left by a failure here is still found by recover()
+    private void abort() throws IOException {
+        for (TransactionOutputStream s : _streams) {
+            try { s._out.cancel(); } catch (IOException ignored) {}
+        }
+        if (_journalOut != null) {
+            try { _journalOut.close(); } catch (IOException ignored) {}
+            Files.deleteIfExists(_journal);
+        }
+    }
+    
+    private void appendJournal(byte[] record) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(record);
+        while (buf.hasRemaining()) _journalOut.write(buf);
+    }
+    
+    /**
+     * Completes or undoes a transaction interrupted by a crash, using the
+     * journal it left behind, and deletes the journal.  Does nothing if the
+     * journal does not exist.  Renamed files and their directories are always
+     * forced to disk, as for Durability.FULL.
+     * @param journal the journal file of the interrupted transaction
+     * @return true if a committed transaction was rolled forward, false if
+     *     the transaction was rolled back or there was no journal
+     * @throws IOException
+     */
+    public static boolean recover(Path journal) throws IOException {
+        List<Path[]> entries = new ArrayList<>(); // each is { tmp, dest }
+        boolean committed = false;
+        try (InputStream in = Files.newInputStream(journal)) {
+            DataInputStream din = new DataInputStream(in);
+            try {
+                while (!committed) {
+                    byte type = din.readByte();
+                    if (type == COMMIT) {
+                        committed = true;
+                    } else if (type == ENTRY) {
+                        String tmpName = din.readUTF();
+                        Path dest = Paths.get(din.readUTF());
+                        entries.add(new Path[] { dest.resolveSibling(tmpName), dest });
+                    } else {
+                        break; // an incomplete journal; nothing after this was committed
+                    }
+                }
+            } catch (EOFException e) {
+                // journal ends without a commit marker, so roll back
+            }
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        
+        if (committed) {
+            Set<Path> dirs = new LinkedHashSet<>();
+            for (Path[] e : entries) {
+                if (Files.exists(e[0])) {
+                    Files.move(e[0], e[1], StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                }
+                dirs.add(e[1].getParent());
+            }
+            for (Path dir : dirs) Durability.FULL.syncDirectory(dir);
+        } else {
+            for (Path[] e : entries) Files.deleteIfExists(e[0]);
+        }
+        Files.delete(journal);
+        Durability.FULL.syncDirectory(journal.toAbsolutePath().getParent());
+        return committed;
+    }
+    
+    // finishes its temporary file on close, leaving the rename to commit().
+    // remembers any failure so that commit() cannot go ahead without the file.
+    // like AtomicFileOutputStream, writes are not synchronized.
+    private static class TransactionOutputStream extends OutputStream {
+        final AtomicFileOutputStream _out;
+        private boolean _closed;
+        private IOException _failure;
+        
+        TransactionOutputStream(AtomicFileOutputStream out) {
+            _out = out;
+        }
+        
+        // fails if the stream has failed or been closed
+        private void ensureOpen() throws IOException {
+            if (_failure != null) throw _failure;
+            if (_closed) throw new IOException("Stream Closed");
+        }
+        
+        @Override public void write(int b) throws IOException {
+            ensureOpen();
+            try { _out.write(b); }
+            catch (IOException e) { _failure = e; throw(e); }
+        }
+        
+        @Override public void write(byte[] b, int off, int len) throws IOException {
+            ensureOpen();
+            try { _out.write(b, off, len); }
+            catch (IOException e) { _failure = e; throw(e); }
+        }
+        
+        @Override public void flush() throws IOException {
+            ensureOpen();
+            try { _out.flush(); }
+            catch (IOException e) { _failure = e; throw(e); }
+        }
+        
+        @Override public synchronized void close() throws IOException {
+            if (_failure != null) throw _failure;
+            if (_closed) return;
+            try { _out.closeTemp(); }
+            catch (IOException e) { _failure = e; throw(e); }
+            _closed = true;
+        }
+    }
+}
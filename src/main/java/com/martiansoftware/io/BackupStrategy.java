@@ -0,0 +1,50 @@
+package com.martiansoftware.io;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Determines how an AtomicFileOutputStream backs up the original destination
+ * file before replacing it.
+ * 
+ * @author Marty Lamb
+ */
+public enum BackupStrategy {
+    
+    /**
+     * Backs up the destination by copying its full contents.  This works
+     * everywhere, but costs I/O and disk space proportional to the size of
+     * the destination, except where the JDK's Files.copy() is able to clone
+     * the file instead (recent JDKs do so on Linux copy-on-write file
+     * systems such as btrfs and XFS with reflink enabled).
+     */
+    COPY {
+        @Override void backup(Path dest, Path bak) throws IOException {
+            Files.copy(dest, bak, StandardCopyOption.REPLACE_EXISTING);
+        }
+    },
+    
+    /**
+     * Backs up the destination by creating a hard link to it, which takes
+     * constant time and copies no data.  This is safe because the destination
+     * is always replaced by a rename rather than written in place, so the
+     * linked backup keeps the original contents.  For the same reason a
+     * copy-on-write clone of the destination would gain nothing over a link.
+     * Falls back to COPY if the file system does not support hard links.
+     */
+    LINK {
+        @Override void backup(Path dest, Path bak) throws IOException {
+            try {
+                Files.deleteIfExists(bak);
+                Files.createLink(bak, dest);
+            } catch (UnsupportedOperationException | IOException e) {
+                COPY.backup(dest, bak);
+            }
+        }
+    };
+    
+    // makes bak a backup of dest, replacing bak if it already exists
+    abstract void backup(Path dest, Path bak) throws IOException;
+}
@@ -0,0 +1,62 @@
+package com.martiansoftware.io;
+
+/**
+ * Records how long each phase of committing an AtomicFileOutputStream took,
+ * so that the cost of a Durability level or BackupStrategy can be weighed
+ * against the protection it provides.  All times are in nanoseconds.
+ * 
+ * @author Marty Lamb
+ */
+public final class CommitStats {
+    
+    long _flushNanos;   // writing buffered data and closing the temporary file
+    long _syncNanos;    // forcing the temporary file to disk
+    long _backupNanos;  // backing up the original file
+    long _renameNanos;  // moving the temporary file over the destination
+    long _dirSyncNanos; // forcing the destination directory to disk
+    
+    CommitStats() {}
+    
+    /**
+     * Returns the time spent writing buffered data to and closing the temporary file
+     * @return the time spent writing buffered data to and closing the temporary file
+     */
+    public long getFlushNanos() { return _flushNanos; }
+    
+    /**
+     * Returns the time spent forcing the temporary file to disk
+     * @return the time spent forcing the temporary file to disk
+     */
+    public long getSyncNanos() { return _syncNanos; }
+    
+    /**
+     * Returns the time spent backing up the original file
+     * @return the time spent backing up the original file
+     */
+    public long getBackupNanos() { return _backupNanos; }
+    
+    /**
+     * Returns the time spent moving the temporary file over the destination
+     * @return the time spent moving the temporary file over the destination
+     */
+    public long getRenameNanos() { return _renameNanos; }
+    
+    /**
+     * Returns the time spent forcing the destination's directory to disk
+     * @return the time spent forcing the destination's directory to disk
+     */
+    public long getDirectorySyncNanos() { return _dirSyncNanos; }
+    
+    /**
+     * Returns the total time spent committing
+     * @return the total time spent committing
+     */
+    public long getTotalNanos() {
+        return _flushNanos + _syncNanos + _backupNanos + _renameNanos + _dirSyncNanos;
+    }
+    
+    @Override public String toString() {
+        return String.format("CommitStats[flush=%d, sync=%d, backup=%d, rename=%d, dirSync=%d, total=%d]",
+                                _flushNanos, _syncNanos, _backupNanos, _renameNanos, _dirSyncNanos, getTotalNanos());
+    }
+}
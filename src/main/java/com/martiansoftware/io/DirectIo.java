@@ -0,0 +1,131 @@
+package com.martiansoftware.io;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Writes to a file opened for direct I/O (bypassing the page cache), which
+ * requires every write to be a whole number of blocks at a block-aligned file
+ * position, from a block-aligned buffer.  Aligned buffers are pooled across
+ * instances, since they are expensive to allocate.
+ * 
+ * Direct I/O needs ExtendedOpenOption.DIRECT (JDK 10 and later), which is
+ * looked up reflectively so that this library still runs on Java 8.
+ * 
+ * @author Marty Lamb
+ */
+final class DirectIo {
+    
+    // the open option requesting direct I/O, or null if this JDK has none
+    static final OpenOption DIRECT;
+    
+    private static final Method ALIGNED_SLICE;  // ByteBuffer.alignedSlice(int), JDK 9+
+    private static final Method GET_BLOCK_SIZE; // FileStore.getBlockSize(), JDK 10+
+    
+    static {
+        OpenOption direct = null;
+        Method alignedSlice = null, getBlockSize = null;
+        try {
+            Class<?> c = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+            for (Object o : c.getEnumConstants()) {
+                if ("DIRECT".equals(((Enum<?>) o).name())) direct = (OpenOption) o;
+            }
+            alignedSlice = ByteBuffer.class.getMethod("alignedSlice", int.class);
+            getBlockSize = FileStore.class.getMethod("getBlockSize");
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            direct = null;
+        }
+        DIRECT = direct;
+        ALIGNED_SLICE = alignedSlice;
+        GET_BLOCK_SIZE = getBlockSize;
+    }
+    
+    // the size of each pooled buffer; a multiple of any supported block size
+    private static final int POOLED_BUFFER_SIZE = 1 << 20;
+    
+    // idle aligned buffers, by alignment
+    private static final Map<Integer, Queue<ByteBuffer>> POOL = new ConcurrentHashMap<>();
+    
+    private final FileChannel _out;
+    private final int _blockSize;
+    private ByteBuffer _aligned; // borrowed from POOL until close()
+    
+    DirectIo(FileChannel out, int blockSize) {
+        _out = out;
+        _blockSize = blockSize;
+        _aligned = acquire(blockSize);
+    }
+    
+    static boolean isSupported() {
+        return DIRECT != null;
+    }
+    
+    // the block size of the file store containing the specified directory
+    static int blockSize(Path dir) throws IOException {
+        try {
+            return (int) (long) (Long) GET_BLOCK_SIZE.invoke(Files.getFileStore(dir));
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("unable to determine block size of " + dir, e);
+        }
+    }
+    
+    int blockSize() {
+        return _blockSize;
+    }
+    
+    // writes len bytes, which must be a multiple of the block size
+    void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, _aligned.capacity());
+            _aligned.clear();
+            _aligned.put(b, off, n);
+            _aligned.flip();
+            while (_aligned.hasRemaining()) _out.write(_aligned);
+            off += n;
+            len -= n;
+        }
+    }
+    
+    // writes a final partial block, padding it to a whole block and then
+    // truncating the file to remove the padding
+    void writeTail(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return;
+        long size = _out.position() + len;
+        int padded = (len + _blockSize - 1) / _blockSize * _blockSize;
+        _aligned.clear();
+        _aligned.put(b, off, len);
+        while (_aligned.position() < padded) _aligned.put((byte) 0);
+        _aligned.flip();
+        while (_aligned.hasRemaining()) _out.write(_aligned);
+        _out.truncate(size);
+    }
+    
+    // returns the aligned buffer to the pool
+    void close() {
+        if (_aligned != null) {
+            POOL.get(_blockSize).add(_aligned);
+            _aligned = null;
+        }
+    }
+    
+    private static ByteBuffer acquire(int alignment) {
+        Queue<ByteBuffer> q = POOL.computeIfAbsent(alignment, k -> new ConcurrentLinkedQueue<>());
+        ByteBuffer b = q.poll();
+        if (b != null) return b;
+        try {
+            return (ByteBuffer) ALIGNED_SLICE.invoke(ByteBuffer.allocateDirect(POOLED_BUFFER_SIZE + alignment), alignment);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("aligned buffers are not supported", e);
+        }
+    }
+}
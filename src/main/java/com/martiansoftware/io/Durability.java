@@ -0,0 +1,62 @@
+package com.martiansoftware.io;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Determines how much effort an AtomicFileOutputStream makes to ensure that a
+ * replaced file survives a crash or power loss.  Higher levels make commits
+ * slower; CommitStats can be used to see what each level costs for a given
+ * workload.
+ * 
+ * @author Marty Lamb
+ */
+public enum Durability {
+    
+    /**
+     * Nothing is forced to disk.  After a crash, the destination may be
+     * empty or contain only part of the new data, even though the rename
+     * itself was atomic.
+     */
+    NONE,
+    
+    /**
+     * The contents of the temporary file are forced to disk (like fdatasync)
+     * before it replaces the destination, so the destination never refers to
+     * data that was not written.  The rename itself may still be lost in a
+     * crash, leaving the original file in place.
+     */
+    DATA,
+    
+    /**
+     * The temporary file's contents and metadata are forced to disk before it
+     * replaces the destination, and the destination's directory is forced to
+     * disk afterwards so that the rename itself is durable.
+     */
+    FULL;
+    
+    // forces the temporary file's contents (and metadata, for FULL) to disk
+    void syncFile(FileChannel ch) throws IOException {
+        if (this != NONE) ch.force(this == FULL);
+    }
+    
+    // forces the temporary file's contents (and metadata, for FULL) to disk
+    void syncFile(AsynchronousFileChannel ch) throws IOException {
+        if (this != NONE) ch.force(this == FULL);
+    }
+    
+    // forces the directory containing a renamed file to disk, for FULL
+    void syncDirectory(Path dir) throws IOException {
+        if (this != FULL) return;
+        FileChannel ch;
+        try {
+            ch = FileChannel.open(dir, StandardOpenOption.READ);
+        } catch (IOException e) {
+            return; // some platforms (e.g. Windows) cannot open directories; nothing more we can do
+        }
+        try { ch.force(true); } finally { ch.close(); }
+    }
+}
@@ -0,0 +1,133 @@
+package com.martiansoftware.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Commits many AtomicFileOutputStreams in batches, so that streams closed
+ * concurrently from many threads share the cost of forcing their directories
+ * to disk.
+ * 
+ * Each stream still forces its own temporary file to disk (as required by its
+ * Durability) in the closing thread, so that data syncs proceed in parallel.
+ * The renames are then handed to a single committer thread, which performs
+ * them in the order they were submitted and forces each affected directory
+ * to disk once per batch rather than once per file.  Under load this
+ * approaches one directory sync per batch instead of one per file.
+ * 
+ * For many concurrent small replacements, the fewest system calls per file
+ * come from combining a GroupCommitter with a write buffer at least as large
+ * as each file: the temporary file is then created, written and closed in
+ * one burst on close(), and only the rename is left for the committer.
+ * 
+ * A GroupCommitter may be shared by any number of streams via
+ * AtomicFileOutputStream.setGroupCommitter(), and should be closed when no
+ * longer needed.
+ * 
+ * @author Marty Lamb
+ */
+public class GroupCommitter implements Closeable {
+    
+    private static final Request SHUTDOWN = new Request(null);
+    
+    private final BlockingQueue<Request> _queue = new LinkedBlockingQueue<>();
+    private final int _maxBatchSize;
+    private final Thread _thread;
+    private boolean _closed; // guarded by this
+    
+    /**
+     * The maximum number of commits processed in a single batch by the default constructor
+     */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 1024;
+    
+    /**
+     * Creates a new GroupCommitter with a daemon committer thread
+     */
+    public GroupCommitter() {
+        this (DEFAULT_MAX_BATCH_SIZE);
+    }
+    
+    /**
+     * Creates a new GroupCommitter with a daemon committer thread
+     * @param maxBatchSize the maximum number of commits processed in a single batch
+     */
+    public GroupCommitter(int maxBatchSize) {
+        if (maxBatchSize <= 0) throw new IllegalArgumentException("maxBatchSize must be positive");
+        _maxBatchSize = maxBatchSize;
+        _thread = new Thread(this::run, "GroupCommitter");
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+    
+    // queues a commit whose temporary file is already closed (and synced, if required)
+    CompletableFuture<Void> submit(AtomicCommit commit) {
+        Request r = new Request(commit);
+        synchronized (this) {
+            if (_closed) {
+                r._future.completeExceptionally(new IOException("GroupCommitter is closed"));
+            } else {
+                _queue.add(r);
+            }
+        }
+        return r._future;
+    }
+    
+    private void run() {
+        List<Request> batch = new ArrayList<>();
+        boolean running = true;
+        while (running) {
+            try {
+                batch.add(_queue.take());
+            } catch (InterruptedException e) {
+                continue; // only close() stops us, so that no commit is left waiting forever
+            }
+            _queue.drainTo(batch, _maxBatchSize - 1);
+            running = !batch.remove(SHUTDOWN); // nothing is queued after SHUTDOWN
+            commitBatch(batch);
+            batch.clear();
+        }
+    }
+    
+    private void commitBatch(List<Request> batch) {
+        List<AtomicCommit> commits = new ArrayList<>(batch.size());
+        for (Request r : batch) commits.add(r._commit);
+        Map<AtomicCommit, Exception> failures = AtomicCommit.finishAll(commits);
+        for (Request r : batch) {
+            Exception e = failures.get(r._commit);
+            if (e == null) r._future.complete(null); else r._future.completeExceptionally(e);
+        }
+    }
+    
+    /**
+     * Stops accepting new commits, waits for all pending commits to complete,
+     * and stops the committer thread.
+     */
+    @Override public void close() {
+        synchronized (this) {
+            if (_closed) return;
+            _closed = true;
+            _queue.add(SHUTDOWN);
+        }
+        boolean interrupted = false;
+        while (_thread.isAlive()) {
+            try {
+                _thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+    
+    private static class Request {
+        final AtomicCommit _commit;
+        final CompletableFuture<Void> _future = new CompletableFuture<>();
+        Request(AtomicCommit commit) { _commit = commit; }
+    }
+}
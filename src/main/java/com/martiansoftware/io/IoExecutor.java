@@ -0,0 +1,47 @@
+package com.martiansoftware.io;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The Executor used for background commits and batch writes when the caller
+ * does not supply one.  That work blocks on disk I/O, so it is kept off the
+ * common ForkJoinPool, which the rest of the JVM relies on for non-blocking
+ * work.  Threads are daemons, are created only when needed, and exit after a
+ * minute of idleness.
+ * 
+ * @author Marty Lamb
+ */
+final class IoExecutor {
+    
+    private static final int THREADS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+    private static final long KEEP_ALIVE_SECONDS = 60;
+    
+    private IoExecutor() {}
+    
+    // the shared executor, created on first use
+    static ExecutorService get() {
+        return Holder.INSTANCE;
+    }
+    
+    private static class Holder {
+        static final ExecutorService INSTANCE = create();
+    }
+    
+    private static ExecutorService create() {
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread t = new Thread(r, "AtomicFileIo-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        ThreadPoolExecutor result = new ThreadPoolExecutor(THREADS, THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                                                           new LinkedBlockingQueue<>(), factory);
+        result.allowCoreThreadTimeOut(true);
+        return result;
+    }
+}
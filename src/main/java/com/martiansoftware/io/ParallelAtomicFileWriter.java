@@ -0,0 +1,246 @@
+package com.martiansoftware.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Generates a single file in parallel from independently-written chunks of
+ * known size, and atomically replaces the destination only if every chunk
+ * succeeds.
+ * 
+ * Chunks are laid out in the file in the order in which they are added.  When
+ * write() is called, each chunk is written by a separate task in a
+ * ForkJoinPool to its own region of an AtomicFileChannel's temporary file.
+ * Once every chunk has been written, the channel is closed, committing the
+ * file.  If any chunk fails (or writes other than exactly its declared
+ * length), the remaining chunks are cancelled and the channel is cancelled,
+ * deleting its temporary file.
+ * 
+ * Each write to the file is made through ForkJoinPool.managedBlock(), so
+ * that the pool can add threads while chunks are blocked on disk I/O rather
+ * than starving its other tasks.  Passing a dedicated pool to
+ * write(ForkJoinPool) keeps chunk writing entirely separate from the common
+ * pool.
+ * 
+ * @author Marty Lamb
+ */
+public class ParallelAtomicFileWriter {
+    
+    private final AtomicFileChannel _channel;
+    private final List<Chunk> _chunks = new ArrayList<>();
+    private long _size; // total length of all chunks added so far
+    private volatile boolean _cancelled; // set when any chunk fails
+    private Throwable _failure; // the first failure of any chunk; guarded by this
+    
+    // the most each chunk's stream buffers before writing to the channel
+    private static final int CHUNK_BUFFER_SIZE = 8192;
+    
+    /**
+     * Writes one chunk of a ParallelAtomicFileWriter's output
+     */
+    @FunctionalInterface public interface ChunkWriter {
+        /**
+         * Writes exactly the chunk's declared length to the specified stream.
+         * The stream buffers small writes itself, and need not be closed.
+         * @param out the stream to which the chunk should be written
+         * @throws IOException 
+         */
+        public void write(OutputStream out) throws IOException;
+    }
+    
+    /**
+     * Creates a new ParallelAtomicFileWriter that writes to and then commits
+     * the specified AtomicFileChannel.  The channel should not be used by
+     * anything else.
+     * @param channel the channel to write to and commit
+     */
+    public ParallelAtomicFileWriter(AtomicFileChannel channel) {
+        _channel = channel;
+    }
+    
+    /**
+     * Adds a chunk to the end of the file
+     * @param length the exact number of bytes the chunk will write
+     * @param writer writes the chunk
+     * @return the offset of the chunk within the file
+     */
+    public long addChunk(long length, ChunkWriter writer) {
+        if (length < 0) throw new IllegalArgumentException("length must not be negative");
+        long offset = _size;
+        _chunks.add(new Chunk(offset, length, writer));
+        _size += length;
+        return offset;
+    }
+    
+    /**
+     * Writes all chunks in parallel using the common ForkJoinPool and commits
+     * the file.  The pool compensates for chunks blocked on disk I/O, but
+     * chunk writers that block on anything else should be run in a pool of
+     * the caller's own via write(ForkJoinPool).
+     * @throws IOException 
+     */
+    public void write() throws IOException {
+        write(ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * Writes all chunks in parallel using the specified ForkJoinPool, then
+     * closes the channel to commit the file.  If any chunk fails, the others are
+     * cancelled, the channel is cancelled, and the first failure is thrown
+     * (with any others attached as suppressed exceptions).
+     * @param pool the pool in which to write the chunks
+     * @throws IOException 
+     */
+    public void write(ForkJoinPool pool) throws IOException {
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(_chunks.size());
+        for (Chunk c : _chunks) tasks.add(pool.submit(ForkJoinTask.adapt(c::run)));
+        for (ForkJoinTask<?> task : tasks) task.quietlyJoin();
+        Throwable failure;
+        synchronized (this) { failure = _failure; }
+        if (failure == null) {
+            _channel.close();
+            return;
+        }
+        _channel.cancel();
+        if (failure instanceof IOException) throw (IOException) failure;
+        if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+        throw (Error) failure;
+    }
+    
+    // records a chunk's failure and cancels all chunks that have not yet finished
+    private synchronized void fail(Throwable t) {
+        if (_failure == null) {
+            _failure = t;
+            _cancelled = true;
+        } else if (!(t instanceof ChunkCancelledException)) {
+            _failure.addSuppressed(t);
+        }
+    }
+    
+    private class Chunk {
+        final long _offset, _length;
+        final ChunkWriter _writer;
+        
+        Chunk(long offset, long length, ChunkWriter writer) {
+            _offset = offset;
+            _length = length;
+            _writer = writer;
+        }
+        
+        void run() {
+            try {
+                if (_cancelled) return;
+                RegionOutputStream out = new RegionOutputStream(_offset, _length);
+                _writer.write(out);
+                out.flush();
+                if (out._written != _length) {
+                    throw new IOException("chunk at offset " + _offset + " wrote " + out._written
+                                            + " of its " + _length + " bytes");
+                }
+            } catch (IOException | RuntimeException | Error e) {
+                fail(e);
+            }
+        }
+    }
+    
+    // writes positionally to a fixed region of the channel through a small
+    // buffer, refusing to overrun it and giving up as soon as any other chunk fails
+    private class RegionOutputStream extends OutputStream {
+        private final long _offset, _length;
+        private final byte[] _buf;
+        private int _count; // number of valid bytes in _buf
+        long _written;      // bytes accepted so far, including those still in _buf
+        
+        RegionOutputStream(long offset, long length) {
+            _offset = offset;
+            _length = length;
+            _buf = new byte[(int) Math.min(length, CHUNK_BUFFER_SIZE)];
+        }
+        
+        @Override public void write(int b) throws IOException {
+            if (_cancelled) throw new ChunkCancelledException();
+            if (_written == _length) throw overrun();
+            if (_count == _buf.length) flushBuffer();
+            _buf[_count++] = (byte) b;
+            ++_written;
+        }
+        
+        @Override public void write(byte[] b, int off, int len) throws IOException {
+            if ((off | len | (off + len) | (b.length - (off + len))) < 0) throw new IndexOutOfBoundsException();
+            if (_cancelled) throw new ChunkCancelledException();
+            if (len > _length - _written) throw overrun();
+            if (len > _buf.length - _count) flushBuffer();
+            if (len > _buf.length) {
+                writeAt(ByteBuffer.wrap(b, off, len), _offset + _written);
+            } else {
+                System.arraycopy(b, off, _buf, _count, len);
+                _count += len;
+            }
+            _written += len;
+        }
+        
+        @Override public void flush() throws IOException {
+            if (_cancelled) throw new ChunkCancelledException();
+            flushBuffer();
+        }
+        
+        private void flushBuffer() throws IOException {
+            if (_count == 0) return;
+            writeAt(ByteBuffer.wrap(_buf, 0, _count), _offset + _written - _count);
+            _count = 0;
+        }
+        
+        private void writeAt(ByteBuffer src, long position) throws IOException {
+            RegionWrite w = new RegionWrite(src, position);
+            try {
+                ForkJoinPool.managedBlock(w);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while writing chunk at offset " + _offset);
+            }
+            if (w._failure != null) throw w._failure;
+        }
+        
+        private IOException overrun() {
+            return new IOException("chunk at offset " + _offset + " overran its " + _length + " bytes");
+        }
+    }
+    
+    // writes a buffer at a fixed position as a blocking operation that the
+    // pool can compensate for
+    private class RegionWrite implements ForkJoinPool.ManagedBlocker {
+        private final ByteBuffer _src;
+        private long _position;
+        IOException _failure;
+        
+        RegionWrite(ByteBuffer src, long position) {
+            _src = src;
+            _position = position;
+        }
+        
+        @Override public boolean block() {
+            try {
+                while (_src.hasRemaining()) _position += _channel.write(_src, _position);
+            } catch (IOException e) {
+                _failure = e;
+            }
+            return true;
+        }
+        
+        @Override public boolean isReleasable() {
+            return _failure != null || !_src.hasRemaining();
+        }
+    }
+    
+    // thrown by chunks that stop because another chunk failed
+    private static class ChunkCancelledException extends IOException {
+        private static final long serialVersionUID = 1L;
+        ChunkCancelledException() { super("cancelled because another chunk failed"); }
+    }
+}
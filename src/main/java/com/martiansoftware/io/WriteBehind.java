@@ -0,0 +1,145 @@
+package com.martiansoftware.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A bounded ring of preallocated buffers drained to a FileChannel by a
+ * dedicated writer thread.  The producer hands over a full buffer and gets an
+ * empty one back, blocking only when every buffer is waiting to be written.
+ * 
+ * @author Marty Lamb
+ */
+final class WriteBehind {
+    
+    private static final ByteBuffer STOP = ByteBuffer.allocate(0);
+    
+    private final BlockingQueue<ByteBuffer> _free; // empty buffers available to the producer
+    private final BlockingQueue<ByteBuffer> _full; // buffers waiting to be written, in order
+    private FileChannel _out;  // set by start()
+    private Thread _thread;    // set by start()
+    private long _submitted;   // buffers handed over by the producer; producer thread only
+    private long _completed;   // buffers written (or discarded after a failure); guarded by this
+    private volatile IOException _failure; // first write failure, reported to the producer
+    private volatile long _writebackInterval; // if positive, _out is forced to disk whenever this many bytes are written
+    private long _unforced; // bytes written since _out was last forced; writer thread only
+    private volatile boolean _stopped; // set by stop(); no more buffers may be handed over
+    
+    // preallocates all but one of bufferCount buffers; the producer supplies the last
+    WriteBehind(int bufferCount, int bufferSize) {
+        _free = new ArrayBlockingQueue<>(bufferCount);
+        _full = new ArrayBlockingQueue<>(bufferCount + 1);
+        for (int i = 1; i < bufferCount; ++i) _free.add(ByteBuffer.allocate(bufferSize));
+    }
+    
+    boolean isStarted() {
+        return _thread != null;
+    }
+    
+    // starts the writer thread, which writes to the specified channel
+    void start(FileChannel out) {
+        _out = out;
+        _thread = new Thread(this::run, "AtomicFileOutputStream write-behind");
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+    
+    void setWritebackInterval(long bytes) {
+        _writebackInterval = bytes;
+    }
+    
+    // queues a full buffer (from position to limit) for writing and returns an
+    // empty one.  if this fails, the full buffer may still belong to the writer
+    // thread, so the caller must not reuse it, and every later call fails.
+    ByteBuffer handOff(ByteBuffer full) throws IOException {
+        checkStopped();
+        checkFailure();
+        try {
+            _full.put(full);
+            ++_submitted;
+            return _free.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException ie = new InterruptedIOException("interrupted while waiting for write-behind buffer");
+            if (_failure == null) _failure = ie; // the data handed over so far can no longer be relied upon
+            throw ie;
+        }
+    }
+    
+    // waits until every buffer handed over so far has been written
+    void drain() throws IOException {
+        checkStopped();
+        try {
+            synchronized (this) {
+                while (_completed < _submitted) wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while draining write-behind buffers");
+        }
+        checkFailure();
+    }
+    
+    // stops the writer thread once it has dealt with everything already handed over
+    void stop() {
+        if (_stopped) return;
+        _stopped = true;
+        if (_thread == null) return;
+        _full.add(STOP);
+        boolean interrupted = false;
+        while (_thread.isAlive()) {
+            try {
+                _thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+    
+    private void checkStopped() throws IOException {
+        if (_stopped) throw new IOException("write-behind has been stopped");
+    }
+    
+    private void checkFailure() throws IOException {
+        IOException e = _failure;
+        if (e != null) throw new IOException("write-behind failed", e);
+    }
+    
+    private void run() {
+        while (true) {
+            ByteBuffer b;
+            try {
+                b = _full.take();
+            } catch (InterruptedException e) {
+                continue; // only stop() ends this thread, so that the producer never waits forever
+            }
+            if (b == STOP) return;
+            if (_failure == null) {
+                try {
+                    int n = b.remaining();
+                    while (b.hasRemaining()) _out.write(b);
+                    long interval = _writebackInterval;
+                    if (interval > 0 && (_unforced += n) >= interval) {
+                        _out.force(false);
+                        _unforced = 0;
+                    }
+                } catch (IOException e) {
+                    _failure = e;
+                } catch (RuntimeException e) {
+                    _failure = new IOException(e); // keep running, so that the producer never waits forever
+                }
+            }
+            b.clear();
+            _free.add(b);
+            synchronized (this) {
+                ++_completed;
+                notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.martiansoftware.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A Flow.Subscriber that writes each ByteBuffer it receives to an
+ * AtomicAsyncFileWriter, committing the file when the publisher completes and
+ * cancelling it (leaving the destination untouched) if the publisher fails.
+ * 
+ * Demand is driven by the disk: at most a fixed window of buffers is
+ * requested ahead of the writes that have completed, so memory use stays
+ * bounded however fast the publisher is.  Buffers must not be modified by the
+ * publisher after they are passed to onNext().
+ * 
+ * The outcome is available from getResult().  This class requires Java 9 or
+ * later.
+ * 
+ * @author Marty Lamb
+ */
+public class AtomicFileSubscriber implements Flow.Subscriber<ByteBuffer> {
+    
+    /**
+     * The number of buffers requested ahead of completed writes by the constructors that do not specify one
+     */
+    public static final int DEFAULT_WINDOW = 16;
+    
+    private final AtomicAsyncFileWriter _writer;
+    private final int _window;
+    private final CompletableFuture<Path> _result = new CompletableFuture<>();
+    private final AtomicBoolean _done = new AtomicBoolean(); // set once the writer is committed or cancelled
+    private volatile Flow.Subscription _subscription;
+    
+    /**
+     * Creates a new AtomicFileSubscriber to write to or replace the File at the specified Path.
+     * The temporary file is created before this constructor returns.
+     * @param path the path of the File to write to or replace
+     * @throws IOException 
+     */
+    public AtomicFileSubscriber(Path path) throws IOException {
+        this (new AtomicAsyncFileWriter(path), DEFAULT_WINDOW);
+    }
+    
+    /**
+     * Creates a new AtomicFileSubscriber that writes to and then commits or
+     * cancels the specified AtomicAsyncFileWriter, which should not be used by
+     * anything else.
+     * @param writer the writer to write to
+     * @param window the maximum number of buffers requested ahead of completed writes
+     */
+    public AtomicFileSubscriber(AtomicAsyncFileWriter writer, int window) {
+        if (window <= 0) throw new IllegalArgumentException("window must be positive");
+        _writer = writer;
+        _window = window;
+    }
+    
+    /**
+     * Returns a CompletableFuture that completes with the destination Path once
+     * it has been replaced, or exceptionally if the publisher or any write fails
+     * @return a CompletableFuture that completes with the destination Path once it has been replaced
+     */
+    public CompletableFuture<Path> getResult() { return _result; }
+    
+    @Override public void onSubscribe(Flow.Subscription subscription) {
+        if (_subscription != null) {
+            subscription.cancel(); // we only write one file
+            return;
+        }
+        _subscription = subscription;
+        subscription.request(_window);
+    }
+
+    @Override public void onNext(ByteBuffer item) {
+        _writer.write(item).whenComplete((n, e) -> {
+            if (e == null) {
+                _subscription.request(1);
+            } else {
+                _subscription.cancel();
+                fail(e);
+            }
+        });
+    }
+
+    @Override public void onError(Throwable throwable) {
+        fail(throwable);
+    }
+
+    @Override public void onComplete() {
+        if (!_done.compareAndSet(false, true)) return;
+        _writer.commit().whenComplete((path, e) -> {
+            if (e == null) _result.complete(path); else _result.completeExceptionally(e);
+        });
+    }
+    
+    // cancels the writer and reports the failure, unless already committed or
+    // cancelled.  may be called on an I/O completion thread, so the temporary
+    // file is deleted by the writer's executor rather than here.
+    private void fail(Throwable t) {
+        if (!_done.compareAndSet(false, true)) return;
+        _writer.cancelAsync().whenComplete((v, e) -> {
+            if (e != null) t.addSuppressed(e);
+            _result.completeExceptionally(t);
+        });
+    }
+}
@@ -0,0 +1,177 @@
+package com.martiansoftware.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Tests AtomicFileOutputStream's commit, cancellation and closing behavior,
+ * and that buffered, write-behind and direct I/O output arrives intact.
+ * 
+ * @author Marty Lamb
+ */
+public class AtomicFileOutputStreamTest {
+    
+    private Path _dir, _dest;
+    
+    @Before public void setUp() throws IOException {
+        _dir = Files.createTempDirectory("AtomicFileOutputStreamTest");
+        _dest = _dir.resolve("dest");
+        Files.write(_dest, "original".getBytes(StandardCharsets.UTF_8));
+    }
+    
+    @After public void tearDown() throws IOException {
+        try (Stream<Path> s = Files.walk(_dir)) {
+            for (Path p : s.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+    
+    @Test public void closeReplacesDestination() throws IOException {
+        try (AtomicFileOutputStream out = new AtomicFileOutputStream(_dest)) {
+            out.write(bytes("replaced"));
+        }
+        assertDestination("replaced");
+    }
+    
+    @Test public void cancelThenCloseLeavesDestination() throws IOException {
+        try (AtomicFileOutputStream out = new AtomicFileOutputStream(_dest)) {
+            out.write(bytes("bad"));
+            out.cancel();
+        }
+        assertDestination("original");
+    }
+    
+    @Test public void cancelThenCloseWithNothingWrittenLeavesDestination() throws IOException {
+        try (AtomicFileOutputStream out = new AtomicFileOutputStream(_dest)) {
+            out.cancel();
+        }
+        assertDestination("original");
+    }
+    
+    @Test public void cancelThenCloseAfterSpillLeavesDestination() throws IOException {
+        try (AtomicFileOutputStream out = new AtomicFileOutputStream(_dest, 16)) {
+            out.write(new byte[100]); // larger than the buffer, so the temporary file exists
+            out.write(bytes("bad"));
+            out.cancel();
+        }
+        assertDestination("original");
+    }
+    
+    @Test(timeout = 10000) public void cancelThenCloseWithWriteBehindLeavesDestination() throws IOException {
+        try (AtomicFileOutputStream out = new AtomicFileOutputStream(_dest, 16, 2)) {
+            out.write(new byte[100]);
+            out.cancel();
+        }
+        assertDestination("original");
+    }
+    
+    @Test public void secondCloseDoesNothing() throws IOException {
+        try (AtomicFileOutputStream out = new AtomicFileOutputStream(_dest)) {
+            out.write(bytes("replaced"));
+            out.close();
+        }
+        assertDestination("replaced");
+    }
+    
+    @Test public void writeAfterCloseFails() throws IOException {
+        AtomicFileOutputStream out = new AtomicFileOutputStream(_dest);
+        out.close();
+        try {
+            out.write('x');
+            fail("write after close succeeded");
+        } catch (IOException expected) {}
+    }
+    
+    @Test public void writeBehindPreservesOrder() throws IOException {
+        for (int size : new int[] { 0, 1, 63, 64, 65, 5000, 100000 }) {
+            AtomicFileOutputStream out = new AtomicFileOutputStream(_dest, 64, 3);
+            byte[] expected = writeMixed(out, size, new Random(size));
+            out.close();
+            assertDestination(expected);
+        }
+    }
+    
+    @Test public void directIoWritesPartialFinalBlocks() throws IOException {
+        assumeTrue(DirectIo.isSupported());
+        int block = DirectIo.blockSize(_dir);
+        for (int size : new int[] { 0, 1, block - 1, block, block + 1, 3 * block + 17, (1 << 20) + block + 3 }) {
+            AtomicFileOutputStream out = new AtomicFileOutputStream(_dest, 1000);
+            out.enableDirectIo();
+            byte[] expected = writeMixed(out, size, new Random(size));
+            out.close();
+            assertDestination(expected);
+        }
+    }
+    
+    @Test public void directIoFallsBackWhenFileSystemRefusesIt() throws IOException {
+        assumeTrue(DirectIo.isSupported());
+        int block = DirectIo.blockSize(_dir);
+        for (int size : new int[] { 0, 1, block + 1, 3 * block + 17 }) {
+            AtomicFileOutputStream out = new AtomicFileOutputStream(_dest, 1000);
+            out.enableDirectIo();
+            out._directOption = new OpenOption() {}; // rejected by every file system
+            byte[] expected = writeMixed(out, size, new Random(size));
+            out.close();
+            assertDestination(expected);
+        }
+    }
+    
+    // writes size random bytes using every kind of write, with occasional
+    // flushes, and returns what was written
+    private static byte[] writeMixed(AtomicFileOutputStream out, int size, Random r) throws IOException {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        int i = 0;
+        while (expected.size() < size) {
+            byte[] b = new byte[Math.min(size - expected.size(), 1 + r.nextInt(3000))];
+            r.nextBytes(b);
+            switch (i++ % 4) {
+                case 0: for (byte x : b) out.write(x); break;
+                case 1: out.write(ByteBuffer.wrap(b)); break;
+                case 2: out.write(new ByteBuffer[] { ByteBuffer.wrap(b, 0, b.length / 2), ByteBuffer.wrap(b, b.length / 2, b.length - b.length / 2) }); break;
+                default: out.write(b);
+            }
+            expected.write(b, 0, b.length);
+            if (i % 7 == 0) out.flush();
+        }
+        return expected.toByteArray();
+    }
+    
+    private void assertDestination(byte[] expected) throws IOException {
+        assertArrayEquals(expected, Files.readAllBytes(_dest));
+        assertEquals(1, listing().size());
+    }
+    
+    // checks the destination's contents, and that nothing else is left in its directory
+    private void assertDestination(String expected) throws IOException {
+        assertEquals(expected, new String(Files.readAllBytes(_dest), StandardCharsets.UTF_8));
+        assertEquals(1, listing().size());
+    }
+    
+    private List<Path> listing() throws IOException {
+        try (Stream<Path> s = Files.list(_dir)) {
+            return s.collect(Collectors.toList());
+        }
+    }
+    
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,181 @@
+package com.martiansoftware.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests AtomicFileTransaction's commit and crash recovery.  Crashes are
+ * simulated by abandoning a transaction, either before or just after its
+ * commit marker is written, and then calling recover().
+ * 
+ * @author Marty Lamb
+ */
+public class AtomicFileTransactionTest {
+    
+    private Path _dir, _journal, _data, _index, _manifest;
+    
+    @Before public void setUp() throws IOException {
+        _dir = Files.createTempDirectory("AtomicFileTransactionTest");
+        _journal = _dir.resolve("journal");
+        _data = _dir.resolve("data");
+        _index = _dir.resolve("index");
+        _manifest = _dir.resolve("manifest");
+        write(_data, "old data");
+        write(_index, "old index");
+        write(_manifest, "old manifest");
+    }
+    
+    @After public void tearDown() throws IOException {
+        try (Stream<Path> s = Files.walk(_dir)) {
+            for (Path p : s.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+    
+    @Test public void commitReplacesAllFiles() throws IOException {
+        AtomicFileTransaction t = stage("new");
+        t.commit();
+        assertFiles("new");
+        assertEquals(3, listing().size()); // no journal or temporary files
+    }
+    
+    @Test public void recoverWithoutJournalDoesNothing() throws IOException {
+        assertFalse(AtomicFileTransaction.recover(_journal));
+        assertFiles("old");
+    }
+    
+    @Test public void recoverRollsForwardAfterCommitMarker() throws IOException {
+        AtomicFileTransaction t = stage("new");
+        t.prepare(); // crash after the commit marker, before any rename
+        assertFiles("old");
+        assertTrue(AtomicFileTransaction.recover(_journal));
+        assertFiles("new");
+        assertEquals(3, listing().size());
+    }
+    
+    @Test public void recoverRollsForwardAfterSomeRenames() throws IOException {
+        AtomicFileTransaction t = stage("new");
+        t.prepare();
+        // crash after the first rename
+        Path tmp = temporaryFileFor(_data);
+        Files.move(tmp, _data, StandardCopyOption.REPLACE_EXISTING);
+        assertTrue(AtomicFileTransaction.recover(_journal));
+        assertFiles("new");
+        assertEquals(3, listing().size());
+    }
+    
+    @Test public void recoverRollsBackWithoutCommitMarker() throws IOException {
+        stage("new"); // crash with every stream closed but no commit
+        assertTrue(listing().size() > 4);
+        assertFalse(AtomicFileTransaction.recover(_journal));
+        assertFiles("old");
+        assertEquals(3, listing().size());
+    }
+    
+    @Test public void recoverRollsBackTruncatedJournal() throws IOException {
+        AtomicFileTransaction t = stage("new");
+        t.prepare();
+        truncate(_journal, Files.size(_journal) - 1); // lose the commit marker
+        assertFalse(AtomicFileTransaction.recover(_journal));
+        assertFiles("old");
+        assertEquals(3, listing().size());
+    }
+    
+    @Test public void recoverRollsBackJournalTruncatedWithinEntry() throws IOException {
+        AtomicFileTransaction t = stage("new");
+        Path lastTmp = temporaryFileFor(_manifest);
+        t.prepare();
+        truncate(_journal, Files.size(_journal) - 4); // lose the marker and part of the last entry
+        assertFalse(AtomicFileTransaction.recover(_journal));
+        assertFiles("old");
+        assertFalse(Files.exists(_journal));
+        // the last entry is unreadable, so its temporary file is left as after any crash
+        assertEquals(4, listing().size());
+        assertTrue(Files.exists(lastTmp));
+    }
+    
+    @Test public void recoveredJournalAllowsNewTransaction() throws IOException {
+        stage("new");
+        AtomicFileTransaction.recover(_journal);
+        stage("newer").commit();
+        assertFiles("newer");
+    }
+    
+    @Test public void streamRejectsWritesAfterClose() throws IOException {
+        AtomicFileTransaction t = new AtomicFileTransaction(_journal);
+        OutputStream out = t.newOutputStream(_data);
+        out.write('x');
+        out.close();
+        try {
+            out.write('y');
+            fail("write after close succeeded");
+        } catch (IOException expected) {}
+        t.commit();
+        assertEquals("x", read(_data));
+    }
+    
+    // starts a transaction that writes all three files, closing each stream
+    private AtomicFileTransaction stage(String prefix) throws IOException {
+        AtomicFileTransaction t = new AtomicFileTransaction(_journal);
+        t.setDurability(Durability.FULL);
+        for (Path p : new Path[] { _data, _index, _manifest }) {
+            try (OutputStream out = t.newOutputStream(p)) {
+                out.write((prefix + " " + p.getFileName()).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return t;
+    }
+    
+    private void assertFiles(String prefix) throws IOException {
+        assertEquals(prefix + " data", read(_data));
+        assertEquals(prefix + " index", read(_index));
+        assertEquals(prefix + " manifest", read(_manifest));
+    }
+    
+    private Path temporaryFileFor(Path dest) throws IOException {
+        String prefix = dest.getFileName() + ".";
+        for (Path p : listing()) {
+            String name = p.getFileName().toString();
+            if (name.startsWith(prefix) && name.endsWith(".tmp")) return p;
+        }
+        throw new AssertionError("no temporary file for " + dest);
+    }
+    
+    private List<Path> listing() throws IOException {
+        try (Stream<Path> s = Files.list(_dir)) {
+            return s.collect(Collectors.toList());
+        }
+    }
+    
+    private static void truncate(Path p, long size) throws IOException {
+        try (FileChannel ch = FileChannel.open(p, StandardOpenOption.WRITE)) {
+            ch.truncate(size);
+        }
+    }
+    
+    private static void write(Path p, String s) throws IOException {
+        Files.write(p, s.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private static String read(Path p) throws IOException {
+        return new String(Files.readAllBytes(p), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,108 @@
+package com.martiansoftware.io;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests that streams committed through a shared GroupCommitter with
+ * Durability.FULL replace their destinations and leave nothing behind.
+ * 
+ * @author Marty Lamb
+ */
+public class GroupCommitterTest {
+    
+    private static final int FILES = 200;
+    
+    private Path _dir;
+    
+    @Before public void setUp() throws IOException {
+        _dir = Files.createTempDirectory("GroupCommitterTest");
+    }
+    
+    @After public void tearDown() throws IOException {
+        try (Stream<Path> s = Files.walk(_dir)) {
+            for (Path p : s.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+    
+    @Test(timeout = 60000) public void concurrentFullDurabilityCommits() throws Exception {
+        for (int i = 0; i < FILES; i += 2) write(dest(i), "old " + i); // half replace existing files
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try (GroupCommitter committer = new GroupCommitter(16)) {
+            List<Future<CommitStats>> results = new ArrayList<>();
+            for (int i = 0; i < FILES; ++i) {
+                int n = i;
+                results.add(pool.submit((Callable<CommitStats>) () -> {
+                    AtomicFileOutputStream out = new AtomicFileOutputStream(dest(n), n % 2 == 0 ? 4 : 8192);
+                    out.setDurability(Durability.FULL);
+                    out.setGroupCommitter(committer);
+                    out.write(bytes("new " + n));
+                    out.close();
+                    return out.getCommitStats();
+                }));
+            }
+            for (Future<CommitStats> f : results) assertNotNull(f.get());
+        } finally {
+            pool.shutdown();
+        }
+        for (int i = 0; i < FILES; ++i) {
+            assertEquals("new " + i, new String(Files.readAllBytes(dest(i)), StandardCharsets.UTF_8));
+        }
+        assertEquals(FILES, listing().size());
+    }
+    
+    @Test(timeout = 10000) public void closedCommitterLeavesDestination() throws IOException {
+        Path dest = dest(0);
+        write(dest, "old");
+        GroupCommitter committer = new GroupCommitter();
+        committer.close();
+        AtomicFileOutputStream out = new AtomicFileOutputStream(dest);
+        out.setDurability(Durability.FULL);
+        out.setGroupCommitter(committer);
+        out.write(bytes("new"));
+        try {
+            out.close();
+            fail("commit through a closed GroupCommitter succeeded");
+        } catch (IOException expected) {}
+        assertEquals("old", new String(Files.readAllBytes(dest), StandardCharsets.UTF_8));
+        assertEquals(1, listing().size());
+    }
+    
+    private Path dest(int i) {
+        return _dir.resolve("file" + i);
+    }
+    
+    private List<Path> listing() throws IOException {
+        try (Stream<Path> s = Files.list(_dir)) {
+            return s.collect(Collectors.toList());
+        }
+    }
+    
+    private static void write(Path p, String s) throws IOException {
+        Files.write(p, bytes(s));
+    }
+    
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,130 @@
+package com.martiansoftware.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests that ParallelAtomicFileWriter lays chunks out in order, and that a
+ * chunk writing the wrong length or failing cancels the others and leaves the
+ * destination untouched.
+ * 
+ * @author Marty Lamb
+ */
+public class ParallelAtomicFileWriterTest {
+    
+    private Path _dir, _dest;
+    
+    @Before public void setUp() throws IOException {
+        _dir = Files.createTempDirectory("ParallelAtomicFileWriterTest");
+        _dest = _dir.resolve("dest");
+        Files.write(_dest, "original".getBytes(StandardCharsets.UTF_8));
+    }
+    
+    @After public void tearDown() throws IOException {
+        try (Stream<Path> s = Files.walk(_dir)) {
+            for (Path p : s.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+    
+    @Test public void writesChunksInOrder() throws IOException {
+        ParallelAtomicFileWriter w = new ParallelAtomicFileWriter(new AtomicFileChannel(_dest));
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        Random r = new Random(1);
+        for (int i = 0; i < 20; ++i) {
+            byte[] chunk = new byte[i == 0 ? 0 : r.nextInt(50000)];
+            r.nextBytes(chunk);
+            expected.write(chunk, 0, chunk.length);
+            boolean byteAtATime = i % 2 == 0;
+            w.addChunk(chunk.length, out -> {
+                if (byteAtATime) {
+                    for (byte b : chunk) out.write(b);
+                } else {
+                    out.write(chunk, 0, chunk.length / 3);
+                    out.write(chunk, chunk.length / 3, chunk.length - chunk.length / 3);
+                }
+            });
+        }
+        w.write();
+        assertArrayEquals(expected.toByteArray(), Files.readAllBytes(_dest));
+        assertEquals(1, listing().size());
+    }
+    
+    @Test public void overrunFails() throws IOException {
+        ParallelAtomicFileWriter w = new ParallelAtomicFileWriter(new AtomicFileChannel(_dest));
+        w.addChunk(10, out -> out.write(new byte[10]));
+        w.addChunk(10, out -> out.write(new byte[11]));
+        assertFails(w);
+    }
+    
+    @Test public void byteOverrunFails() throws IOException {
+        ParallelAtomicFileWriter w = new ParallelAtomicFileWriter(new AtomicFileChannel(_dest));
+        w.addChunk(10, out -> { for (int i = 0; i <= 10; ++i) out.write(i); });
+        assertFails(w);
+    }
+    
+    @Test public void underrunFails() throws IOException {
+        ParallelAtomicFileWriter w = new ParallelAtomicFileWriter(new AtomicFileChannel(_dest));
+        w.addChunk(10, out -> out.write(new byte[10]));
+        w.addChunk(10, out -> out.write(new byte[9]));
+        assertFails(w);
+    }
+    
+    @Test(timeout = 30000) public void failingChunkCancelsOthers() throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            ParallelAtomicFileWriter w = new ParallelAtomicFileWriter(new AtomicFileChannel(_dest));
+            IOException failure = new IOException("chunk failed");
+            // these would never finish unless cancelled
+            for (int i = 0; i < 3; ++i) {
+                w.addChunk(1L << 40, out -> { while (true) out.write(new byte[100]); });
+            }
+            w.addChunk(10, out -> { throw failure; });
+            try {
+                w.write(pool);
+                fail("write with a failing chunk succeeded");
+            } catch (IOException e) {
+                assertSame(failure, e);
+            }
+            assertDestinationUntouched();
+        } finally {
+            pool.shutdown();
+        }
+    }
+    
+    private void assertFails(ParallelAtomicFileWriter w) throws IOException {
+        try {
+            w.write();
+            fail("write succeeded");
+        } catch (IOException expected) {}
+        assertDestinationUntouched();
+    }
+    
+    private void assertDestinationUntouched() throws IOException {
+        assertEquals("original", new String(Files.readAllBytes(_dest), StandardCharsets.UTF_8));
+        assertEquals(1, listing().size());
+    }
+    
+    private List<Path> listing() throws IOException {
+        try (Stream<Path> s = Files.list(_dir)) {
+            return s.collect(Collectors.toList());
+        }
+    }
+}
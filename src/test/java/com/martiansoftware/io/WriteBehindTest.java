@@ -0,0 +1,92 @@
+package com.martiansoftware.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests that WriteBehind writes buffers in the order they were handed over,
+ * and that failures and stopping are reported to the producer rather than
+ * leaving it waiting.
+ * 
+ * @author Marty Lamb
+ */
+public class WriteBehindTest {
+    
+    private Path _file;
+    private FileChannel _out;
+    
+    @Before public void setUp() throws IOException {
+        _file = Files.createTempFile("WriteBehindTest", ".tmp");
+        _out = FileChannel.open(_file, StandardOpenOption.WRITE);
+    }
+    
+    @After public void tearDown() throws IOException {
+        _out.close();
+        Files.deleteIfExists(_file);
+    }
+    
+    @Test(timeout = 10000) public void writesBuffersInOrder() throws IOException {
+        WriteBehind w = new WriteBehind(3, 100);
+        w.start(_out);
+        Random r = new Random(1);
+        byte[] expected = new byte[100000];
+        r.nextBytes(expected);
+        ByteBuffer b = ByteBuffer.allocate(100);
+        for (int off = 0; off < expected.length; ) {
+            int len = Math.min(expected.length - off, 1 + r.nextInt(100));
+            b.put(expected, off, len).flip();
+            off += len;
+            b = w.handOff(b);
+        }
+        w.drain();
+        w.stop();
+        assertArrayEquals(expected, Files.readAllBytes(_file));
+    }
+    
+    @Test(timeout = 10000) public void failureIsReportedByLaterCalls() throws IOException {
+        WriteBehind w = new WriteBehind(2, 10);
+        _out.close();
+        w.start(_out);
+        ByteBuffer b = ByteBuffer.allocate(10);
+        b.put(new byte[10]).flip();
+        w.handOff(b);
+        try {
+            w.drain();
+            fail("drain after a failed write succeeded");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof ClosedChannelException);
+        }
+        try {
+            w.handOff(ByteBuffer.allocate(10));
+            fail("handOff after a failed write succeeded");
+        } catch (IOException expected) {}
+        w.stop();
+    }
+    
+    @Test(timeout = 10000) public void callsAfterStopFail() throws IOException {
+        WriteBehind w = new WriteBehind(2, 10);
+        w.start(_out);
+        w.stop();
+        try {
+            w.handOff(ByteBuffer.allocate(10));
+            fail("handOff after stop succeeded");
+        } catch (IOException expected) {}
+        try {
+            w.drain();
+            fail("drain after stop succeeded");
+        } catch (IOException expected) {}
+        w.stop(); // stopping again has no effect
+    }
+}